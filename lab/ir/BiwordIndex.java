@@ -10,30 +10,81 @@
 
 package ir;
 
-import java.util.HashMap;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Set;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.lang.Math;
 
 
 
 /**
- *   Implements an inverted index as a Hashtable from Biwords to PostingsLists.
+ *   Implements an inverted index from Biwords to PostingsLists. A biword
+ *   is identified by the term ids of its two words packed into a long,
+ *   and an open-addressing hash table maps that key to the position of
+ *   the biword's PostingsList.
  */
 public class BiwordIndex implements Index {
 
-    /** The index as a hashtable. */
-    private HashMap<String,PostingsList> index = new HashMap<String,PostingsList>(50000);
+    private static final long EMPTY=-1L;
 
-    private String lastToken=null;
+    /** Gives the term ids, shared with the HashedIndex if there is one */
+    private TermDictionary dictionary;
+
+    /** Hash table from packed biword keys to biword ids */
+    private long[] keys;
+    private int[] ids;
+    private int nrOfBiwords=0;
+
+    /** The key and the postings of biword id i */
+    private long[] biwordKeys=new long[50000];
+    private PostingsList[] index=new PostingsList[50000];
+
+    /** The lists of an index opened from a Snapshot, null otherwise */
+    private SnapshotPostings snapshotPostings;
+
+    private int lastTermID=-1;
     private int lastTokenOffset=-1;
     private int lastDocID=-1;
     
     
     public BiwordIndex(){
-    	    
+    	    this(new TermDictionary());
+    }
+    
+    public BiwordIndex(TermDictionary dictionary){
+    	    this.dictionary=dictionary;
+    	    keys=new long[1<<17];
+    	    Arrays.fill(keys,EMPTY);
+    	    ids=new int[keys.length];
+    }
+    
+    /** Reads the biwords written by write() from the position of buf, see Snapshot */
+    BiwordIndex(TermDictionary dictionary, ByteBuffer buf){
+    	    this.dictionary=dictionary;
+    	    nrOfBiwords=buf.getInt();
+    	    int capacity=Math.max(nrOfBiwords,16);
+    	    biwordKeys=Arrays.copyOf(Snapshot.readLongs(buf,nrOfBiwords),capacity);
+    	    index=new PostingsList[capacity];
+    	    snapshotPostings=new SnapshotPostings(buf);
+    	    int size=1<<17;
+    	    while(nrOfBiwords*2>size){
+    	    	    size*=2;
+    	    }
+    	    this.rebuild(size);
+    }
+    
+    /** Writes the biwords and their postings, see Snapshot */
+    void write(DataOutputStream out) throws IOException {
+    	    out.writeInt(nrOfBiwords);
+    	    Snapshot.writeLongs(out,biwordKeys,nrOfBiwords);
+    	    for(int biwordID=0;biwordID<nrOfBiwords;biwordID++){
+    	    	    this.postings(biwordID);
+    	    }
+    	    SnapshotPostings.write(out,index,nrOfBiwords);
     }
     
 
@@ -41,52 +92,74 @@ public class BiwordIndex implements Index {
      *  Inserts this token in the index.
      */
     public void insert( String token, int docID, int offset ) {
+    	insert(dictionary.add(token),docID,offset);
+    }
+    
+    /**
+     *  Inserts the token with the given term id in the index.
+     */
+    void insert( int termID, int docID, int offset ) {
     	    
     	//First check if this is a new document (docID different)
     	if(docID!=lastDocID){
-    		lastToken=null;
+    		lastTermID=-1;
     		lastTokenOffset=0;
     		lastDocID=docID;
     	}
     	
     	//If this is not the first token
-    	if(lastToken!=null){
+    	if(lastTermID>=0){
     		
-    		String biword=lastToken+" "+token;
     		int biwordOffset=lastTokenOffset;
+    		int biwordID=this.addBiword(key(lastTermID,termID));
     		
-		PostingsList list=index.get(biword);
+		PostingsList list=this.postings(biwordID);
 		
 		if(list==null){
-			list=new PostingsList();
-			index.put(biword,list);
-		}
-		//If there is no entry for the docID
-		if(!list.checkContains(docID)){
-			PostingsEntry newEntry=new PostingsEntry(docID);
-			//newEntry.setDocName(this.docIDs.get(""+docID));
-			//System.err.println(this.docIDs.get(""+docID));
-			newEntry.addOffset(biwordOffset);
-			list.addEntry(newEntry);	
-		}
-		else{
-		list.addOffsetToLastEntry(offset); 
+			list=new PostingsList(true);
+			index[biwordID]=list;
 		}
+		//A new entry for the docID starts at the first token of the
+		//biword, later offsets of the entry are those of the last token
+		list.addPosting(docID,list.lastDocID()==docID ? offset : biwordOffset);
 		
 	}
-	lastToken=token;
+	lastTermID=termID;
 	lastTokenOffset=offset;
     }
     
 
 
+    /**
+     *  Appends the biwords of shard, an index of documents with larger
+     *  docIDs than those here. termIDs maps the term ids of the shard's
+     *  dictionary to the ids in ours.
+     */
+    void addShard(BiwordIndex shard, int[] termIDs){
+    	    for(int id=0;id<shard.nrOfBiwords;id++){
+    	    	    long key=shard.biwordKeys[id];
+    	    	    int biwordID=this.addBiword(key(termIDs[(int)(key>>>32)],termIDs[(int)key]));
+    	    	    PostingsList list=this.postings(biwordID);
+    	    	    if(list==null){
+    	    	    	    index[biwordID]=shard.index[id];
+    	    	    }
+    	    	    else{
+    	    	    	    list.appendAll(shard.index[id]);
+    	    	    }
+    	    }
+    }
+
+
     /**
      *  Returns all the words in the index.
      */
     public Iterator<String> getDictionary() {
-	Set<String> keySet=index.keySet();
-	Iterator<String> it=keySet.iterator();
-	return it;
+	ArrayList<String> biwords=new ArrayList<String>();
+	for(int biwordID=0;biwordID<nrOfBiwords;biwordID++){
+		long key=biwordKeys[biwordID];
+		biwords.add(dictionary.term((int)(key>>>32))+" "+dictionary.term((int)key));
+	}
+	return biwords.iterator();
     }
 
 
@@ -95,8 +168,105 @@ public class BiwordIndex implements Index {
      *  if the term is not in the index.
      */
     public PostingsList getPostings( String token ) {
-	PostingsList list=index.get(token);
-	return list;
+	int space=token.indexOf(' ');
+	if(space<0){
+		return null;
+	}
+	return this.getPostings(token.substring(0,space),token.substring(space+1));
+    }
+    
+    /**
+     *  Returns the postings for the biword "first second", or null
+     *  if it is not in the index.
+     */
+    public PostingsList getPostings( String first, String second ) {
+	int firstID=dictionary.lookup(first);
+	int secondID=dictionary.lookup(second);
+	if(firstID<0 || secondID<0){
+		return null;
+	}
+	int biwordID=this.lookupBiword(key(firstID,secondID));
+	if(biwordID<0){
+		return null;
+	}
+	return this.postings(biwordID);
+    }
+    
+    /** index[biwordID], read from the snapshot the first time if there is one */
+    private PostingsList postings(int biwordID){
+    	    PostingsList list=index[biwordID];
+    	    if(list==null && snapshotPostings!=null){
+    	    	    list=snapshotPostings.get(biwordID);
+    	    	    index[biwordID]=list;
+    	    }
+    	    return list;
+    }
+    
+    private static long key(int firstID, int secondID){
+    	    return ((long)firstID<<32) | (secondID & 0xFFFFFFFFL);
+    }
+    
+    private static int hash(long key){
+    	    key*=0x9E3779B97F4A7C15L;
+    	    return (int)(key ^ (key>>>32));
+    }
+    
+    private int lookupBiword(long key){
+    	    int mask=keys.length-1;
+    	    int slot=hash(key) & mask;
+    	    while(keys[slot]!=EMPTY){
+    	    	    if(keys[slot]==key){
+    	    	    	    return ids[slot];
+    	    	    }
+    	    	    slot=(slot+1) & mask;
+    	    }
+    	    return -1;
+    }
+    
+    private int addBiword(long key){
+    	    int mask=keys.length-1;
+    	    int slot=hash(key) & mask;
+    	    while(keys[slot]!=EMPTY){
+    	    	    if(keys[slot]==key){
+    	    	    	    return ids[slot];
+    	    	    }
+    	    	    slot=(slot+1) & mask;
+    	    }
+    	    int biwordID=nrOfBiwords++;
+    	    keys[slot]=key;
+    	    ids[slot]=biwordID;
+    	    if(biwordID==index.length){
+    	    	    index=Arrays.copyOf(index,index.length*2);
+    	    	    biwordKeys=Arrays.copyOf(biwordKeys,biwordKeys.length*2);
+    	    }
+    	    biwordKeys[biwordID]=key;
+    	    //Keep the load factor below 0.5
+    	    if(nrOfBiwords*2>keys.length){
+    	    	    rehash();
+    	    }
+    	    return biwordID;
+    }
+    
+    private void rehash(){
+    	    this.rebuild(keys.length*2);
+    }
+    
+    /** Builds a hash table of the given size, a power of two, for the biwords */
+    private void rebuild(int size){
+    	    long[] newKeys=new long[size];
+    	    Arrays.fill(newKeys,EMPTY);
+    	    int[] newIDs=new int[newKeys.length];
+    	    int mask=newKeys.length-1;
+    	    for(int biwordID=0;biwordID<nrOfBiwords;biwordID++){
+    	    	    int slot=hash(biwordKeys[biwordID]) & mask;
+    	    	    while(newKeys[slot]!=EMPTY){
+    	    	    	    slot=(slot+1) & mask;
+    	    	    }
+    	    	    newKeys[slot]=biwordKeys[biwordID];
+    	    	    newIDs[slot]=biwordID;
+    	    }
+    	    keys=newKeys;
+    	    ids=newIDs;
     }
 
 
@@ -104,10 +274,17 @@ public class BiwordIndex implements Index {
      *  Searches the index for postings matching the query.
      */
     public PostingsList search( Query query, int queryType, int rankingType, int structureType ) {
+	return this.search(query,queryType,rankingType,structureType,0);
+    }
+
+    /**
+     *  Searches the index for the K best documents (all of them if K==0).
+     */
+    public PostingsList search( Query query, int queryType, int rankingType, int structureType, int K ) {
 	
     	    
     	if(queryType==Index.RANKED_QUERY){
-    		PostingsList res=this.fastCosineScore(query,0);
+    		PostingsList res=this.fastCosineScore(query,K);
     		return res;
 	}
 	else{
@@ -118,15 +295,15 @@ public class BiwordIndex implements Index {
 
     /**
     	Function to calculate the cosine score and return the top
-    	K results
+    	K results (all results if K==0)
     */
     private PostingsList fastCosineScore(Query q, int K){
     	    
-    	    HashMap<String,Double> scores=new HashMap<String,Double>();
+    	    ScoreAccumulator scores=ScoreAccumulator.forThread(this.documents.capacity());
     	    LinkedList<String> terms=q.terms;
     	    LinkedList<Double> termWeights=q.weights;
     	    
-    	    int nrDocsInCorpus=this.docIDs.keySet().size();
+    	    int nrDocsInCorpus=this.documents.sizeWithDeleted();
     	    
     	    String lastTerm=null;
     	    
@@ -138,15 +315,15 @@ public class BiwordIndex implements Index {
     	    		continue;	
     	    	}
     	    	
-    	    	//Create the biword term
-    	    	String term=lastTerm+" "+terms.get(i);
-    	    	//update the lastTerm
-    	    	lastTerm=terms.get(i);
+    	    	//Look up the biword of the last term and this one
+    	    	String term=terms.get(i);
     	    	    
     	    	
-    	    	System.err.println("Term:"+term);
+    	    	System.err.println("Term:"+lastTerm+" "+term);
     	    	
-    	    	PostingsList curList=index.get(term);
+    	    	PostingsList curList=this.getPostings(lastTerm,term);
+    	    	//update the lastTerm
+    	    	lastTerm=term;
     	    	if(curList==null){
     	    		continue;	
     	    	}
@@ -161,53 +338,35 @@ public class BiwordIndex implements Index {
     	    	//System.err.println("dft:"+dft);
     	    	//System.err.println("TermIDF:"+termIDF);
     	    	
-    	    	Iterator<PostingsEntry> it=curList.iterator();
-    	    	PostingsEntry curEnt=null;
+    	    	PostingsCursor cur=curList.cursor();
     	    	
-    	    	while(it.hasNext()){
+    	    	while(cur.next()){
     	    	
-    	    		curEnt=it.next();
-    	    		double tf=(double)curEnt.getOffsets().size();
-    	    		double tf_idf=tf*termIDF;
-    	    		Double curScore=scores.get(""+curEnt.getDocID());
-    	    		if(curScore==null){
-    	    			curScore=tf_idf;	
+    	    		int docID=cur.docID();
+    	    		if(this.documents.isDeleted(docID)){
+    	    			continue;
     	    		}
-    	    		else{
-    	    			curScore=curScore+tf_idf;	
-    	    		}
-    	    		scores.put(""+curEnt.getDocID(),curScore);
+    	    		double tf=(double)cur.termFrequency();
+    	    		double tf_idf=tf*termIDF;
+    	    		scores.add(docID,tf_idf);
     	    		
     	    	}
     	    	
     	    }
-    	    //Postingslist to save all entries
-    	    PostingsList finalList=new PostingsList();
+    	    //Heap that keeps the top K entries (all of them if K==0)
+    	    TopKHeap topK=new TopKHeap(K);
     	    //Now we divide all scores by their docLength
-    	    Iterator<String> keys=scores.keySet().iterator();
-    	    while(keys.hasNext()){
+    	    for(int i=0;i<scores.size();i++){
     	    
-    	    	    String curKey=keys.next();
-    	    	    Integer docLength=this.docLengths.get(curKey);
-    	    	    Double curScore=scores.get(curKey);
-    	    	    int docID=Integer.parseInt(curKey);
+    	    	    int docID=scores.docID(i);
+    	    	    int docLength=this.documents.length(docID);
+    	    	    double curScore=scores.score(i);
     	    	    double finalScore=curScore/(double)docLength;
-    	    	    PostingsEntry ent=new PostingsEntry(docID);
-    	    	    ent.setScore(finalScore);
-    	    	    finalList.addEntry(ent);
+    	    	    topK.add(docID,finalScore);
     	    }
     	    
-    	    //When all entries are added we sort the finalList and pick out
-    	    //the top K entries
-    	    finalList.sortPostingsList();
-    	    if(finalList.size()<K || K==0){
-    	    	return finalList;	    
-    	    }
-    	    PostingsList retList=new PostingsList();
-    	    for(int i=0;i<K;i++){
-    	    	retList.addEntry(finalList.get(i));	    
-    	    }
-    	    return retList;
+    	    //The heap has kept the top K entries
+    	    return topK.toPostingsList();
     }
     
 
@@ -221,6 +380,10 @@ public class BiwordIndex implements Index {
 
     	    
 
+    public String docName( int docID ) {
+    	    return this.documents.name(docID);
+    }
+
     /**
      *  No need for cleanup in a HashedIndex.
      */
@@ -0,0 +1,90 @@
+
+
+package ir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ *   A Bloom filter over the UTF-8 bytes of words. contains() is never
+ *   false for a word that was added, and true for a word that was not
+ *   with a probability of about 1% at BITS_PER_WORD bits per word. The
+ *   NR_OF_HASHES bit positions of a word are h1+i*h2, where h1 and h2
+ *   are the two halves of one 64 bit hash of its bytes.
+ */
+public class BloomFilter {
+
+    private static final int BITS_PER_WORD=10;
+    private static final int NR_OF_HASHES=7;
+
+    private final long[] bits;
+    private final long nrOfBits;
+
+
+    /** An empty filter for nrOfWords words */
+    public BloomFilter(int nrOfWords){
+    	    this(new long[(int)Math.max(1,((long)nrOfWords*BITS_PER_WORD+63)/64)]);
+    }
+
+    private BloomFilter(long[] bits){
+    	    this.bits=bits;
+    	    this.nrOfBits=64L*bits.length;
+    }
+
+
+    public void add(byte[] word){
+    	    long hash=hash(word);
+    	    long h1=hash>>>32;
+    	    long h2=(hash & 0xFFFFFFFFL) | 1;
+    	    for(int i=0;i<NR_OF_HASHES;i++){
+    	    	    long bit=(h1+i*h2)%nrOfBits;
+    	    	    bits[(int)(bit>>>6)]|=1L<<bit;
+    	    }
+    }
+
+    /** False if word was never added, true if it probably was */
+    public boolean contains(byte[] word){
+    	    long hash=hash(word);
+    	    long h1=hash>>>32;
+    	    long h2=(hash & 0xFFFFFFFFL) | 1;
+    	    for(int i=0;i<NR_OF_HASHES;i++){
+    	    	    long bit=(h1+i*h2)%nrOfBits;
+    	    	    if((bits[(int)(bit>>>6)] & (1L<<bit))==0){
+    	    	    	    return false;
+    	    	    }
+    	    }
+    	    return true;
+    }
+
+    /** Size of the filter in bytes */
+    public long bytes(){
+    	    return 8L*bits.length;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+    	    out.writeInt(bits.length);
+    	    Snapshot.writeLongs(out,bits,bits.length);
+    }
+
+    /** Reads a filter written by write() into memory */
+    public static BloomFilter read(ByteBuffer buf){
+    	    return new BloomFilter(Snapshot.readLongs(buf,buf.getInt()));
+    }
+
+
+    /** FNV-1a over the bytes, then the 64 bit finalizer of MurmurHash3 to spread the bits */
+    private static long hash(byte[] word){
+    	    long h=0xcbf29ce484222325L;
+    	    for(byte b:word){
+    	    	    h=(h^(b & 0xFF))*0x100000001b3L;
+    	    }
+    	    h^=h>>>33;
+    	    h*=0xff51afd7ed558ccdL;
+    	    h^=h>>>33;
+    	    h*=0xc4ceb9fe1a85ec53L;
+    	    h^=h>>>33;
+    	    return h;
+    }
+}
@@ -0,0 +1,183 @@
+
+
+package ir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ *   Tokenizes text straight from its bytes, in the charset that
+ *   FileIngester.charset() gives for them: UTF-8, or FileIngester.CHARSET,
+ *   which has one byte per character. A table built from
+ *   SimpleTokenizer.normalize() gives the normalized character of each
+ *   character, so the tokens are the same as SimpleTokenizer's: runs
+ *   of token characters with '#' removed, where a run that reaches the
+ *   end of the text or a 0 byte is not a token. The token is kept
+ *   UTF-8 encoded in a buffer that is reused, and a String is only made
+ *   by token(), so a token that is already in a TermDictionary is
+ *   looked up without allocating anything. Unlike SimpleTokenizer the
+ *   text may be of any length.
+ */
+public class ByteTokenizer {
+
+    /** The normalized character of each char, 0 if it cannot be in a token */
+    private static final char[] NORMALIZED_CHAR=new char[1<<16];
+
+    /** The normalized character of each byte in FileIngester.CHARSET */
+    private static final char[] NORMALIZED=new char[256];
+
+    static{
+    	    char[] c=new char[1];
+    	    for(int i=1;i<NORMALIZED_CHAR.length;i++){
+    	    	    c[0]=(char)i;
+    	    	    if(SimpleTokenizer.normalize(c,0)){
+    	    	    	    NORMALIZED_CHAR[i]=c[0];
+    	    	    }
+    	    }
+    	    byte[] b=new byte[1];
+    	    for(int i=1;i<256;i++){
+    	    	    b[0]=(byte)i;
+    	    	    char[] s=new String(b,FileIngester.CHARSET).toCharArray();
+    	    	    if(s.length==1){
+    	    	    	    NORMALIZED[i]=NORMALIZED_CHAR[s[0]];
+    	    	    }
+    	    }
+    }
+
+    private final ByteBuffer bytes;
+    private final int limit;
+    private int ptr;
+
+    /** True if the bytes are decoded as UTF-8 */
+    private final boolean utf8;
+    /** The number of bytes of the character that was last read by normalized() */
+    private int width;
+
+    /** The UTF-8 bytes of the current token */
+    private byte[] term=new byte[64];
+    private int termLength;
+
+    /** Where the current token is in the buffer */
+    private int start=-1;
+    private int end=-1;
+
+
+    /**
+     *  Tokenizes the bytes from the position to the limit, the position
+     *  is not changed. They are decoded in FileIngester.charset().
+     */
+    public ByteTokenizer(ByteBuffer bytes){
+    	    this.bytes=bytes;
+    	    this.ptr=bytes.position();
+    	    this.limit=bytes.limit();
+    	    this.utf8=FileIngester.isUTF8(bytes);
+    }
+
+
+    /** Moves to the next token, false if there are no more */
+    public boolean next(){
+    	    while(ptr<limit){
+    	    	    int b=bytes.get(ptr) & 0xFF;
+    	    	    if(b==0){
+    	    	    	    ptr=limit;
+    	    	    	    return false;
+    	    	    }
+    	    	    char c=normalized(b);
+    	    	    if(c==0){
+    	    	    	    // Skip whitespace etc.
+    	    	    	    ptr+=width;
+    	    	    	    continue;
+    	    	    }
+    	    	    // A token starts here
+    	    	    int tokenStart=ptr;
+    	    	    termLength=0;
+    	    	    while(c!=0){
+    	    	    	    append(c);
+    	    	    	    ptr+=width;
+    	    	    	    if(ptr==limit){
+    	    	    	    	    return false;
+    	    	    	    }
+    	    	    	    b=bytes.get(ptr) & 0xFF;
+    	    	    	    if(b==0){
+    	    	    	    	    ptr=limit;
+    	    	    	    	    return false;
+    	    	    	    }
+    	    	    	    c=normalized(b);
+    	    	    }
+    	    	    start=tokenStart;
+    	    	    end=ptr;
+    	    	    ptr+=width;
+    	    	    return true;
+    	    }
+    	    return false;
+    }
+
+    /** The UTF-8 bytes of the token are term()[0..termLength()) */
+    public byte[] term(){
+    	    return term;
+    }
+
+    public int termLength(){
+    	    return termLength;
+    }
+
+    /** The position of the first byte of the token in the buffer */
+    public int start(){
+    	    return start;
+    }
+
+    /** The position after the last byte of the token in the buffer */
+    public int end(){
+    	    return end;
+    }
+
+    /** The token as a String, the same String SimpleTokenizer.nextToken() returns */
+    public String token(){
+    	    return new String(term,0,termLength,StandardCharsets.UTF_8);
+    }
+
+    /** The id of the token in dictionary, where it is added if it is new */
+    public int termID(TermDictionary dictionary){
+    	    return dictionary.add(term,0,termLength);
+    }
+
+
+    /**
+     *  The normalized character that starts with byte b at ptr, 0 if it
+     *  cannot be in a token. Sets width to its number of bytes.
+     */
+    private char normalized(int b){
+    	    width=1;
+    	    if(b<0x80 || !utf8){
+    	    	    return NORMALIZED[b];
+    	    }
+    	    //Well formed, checked by FileIngester.isUTF8()
+    	    int n=b>=0xF0 ? 3 : (b>=0xE0 ? 2 : 1);
+    	    int cp=b & (0x3F>>n);
+    	    for(int k=1;k<=n;k++){
+    	    	    cp=(cp<<6) | (bytes.get(ptr+k) & 0x3F);
+    	    }
+    	    width=n+1;
+    	    //Above U+FFFF SimpleTokenizer sees two surrogates, neither is in a token
+    	    return cp<NORMALIZED_CHAR.length ? NORMALIZED_CHAR[cp] : 0;
+    }
+
+    private void append(char c){
+    	    if(c=='#'){
+    	    	    return;
+    	    }
+    	    if(termLength+2>term.length){
+    	    	    term=Arrays.copyOf(term,term.length*2);
+    	    }
+    	    if(c<0x80){
+    	    	    term[termLength++]=(byte)c;
+    	    }
+    	    else{
+    	    	    // The normalized characters are all below 0x800
+    	    	    term[termLength++]=(byte)(0xC0 | (c>>6));
+    	    	    term[termLength++]=(byte)(0x80 | (c & 0x3F));
+    	    }
+    }
+}
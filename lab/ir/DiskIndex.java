@@ -0,0 +1,351 @@
+
+
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ *   A read only Index over the segments that a HashedIndex has saved in
+ *   a directory. The segments are memory mapped (see Segment), so a
+ *   query reads no file and deserializes nothing, it decodes the
+ *   postings straight from the page cache.
+ *
+ *   The open segments are an array that is never changed, a new
+ *   segment or a merge replaces the whole array. A query reads the
+ *   array once, so it sees the segments either before or after a merge,
+ *   never a mix, and the old segments stay readable until it is done.
+ *   Only intersection and phrase queries are supported.
+ *
+ *   The postings of the query terms that are not cached are read by
+ *   SearchGUI.prefetchThreads threads at the same time, so a query on
+ *   a cold index waits for the slowest read instead of for the sum of
+ *   them.
+ */
+public class DiskIndex implements Index {
+
+    private final File dir;
+
+    /** The open segments in docID order */
+    private volatile Segment[] segments=new Segment[0];
+
+    /** The postings of the query terms, SearchGUI.postingsCacheMB large */
+    private final PostingsCache cache=new PostingsCache((long)SearchGUI.postingsCacheMB<<20);
+
+    /** Reads the postings of the query terms, null if they are read by the query */
+    private final ExecutorService prefetcher=SearchGUI.prefetchThreads<=0 ? null :
+    	    Executors.newFixedThreadPool(SearchGUI.prefetchThreads,new ThreadFactory(){
+    	    	    public Thread newThread(Runnable r){
+    	    	    	    Thread thread=new Thread(r,"Prefetch");
+    	    	    	    thread.setDaemon(true);
+    	    	    	    return thread;
+    	    	    }
+    	    });
+
+
+    /** Opens the segments that are in dir */
+    public DiskIndex(File dir){
+    	    this.dir=dir;
+    	    try{
+    	    	    for(String name:Segment.list(dir)){
+    	    	    	    this.add(name);
+    	    	    }
+    	    }
+    	    catch(IOException e){
+    	    	    System.err.println("Error reading index from file");
+    	    	    e.printStackTrace();
+    	    }
+    }
+
+    /** Opens the new segment with the given name and adds it to the index */
+    public synchronized void add(String name) throws IOException {
+    	    Segment[] res=Arrays.copyOf(segments,segments.length+1);
+    	    res[segments.length]=Segment.open(dir,name);
+    	    this.publish(res);
+    }
+
+    /**
+     *  Replaces the segments old, which must all be open, with merged in
+     *  one step. Queries that are running keep the old segments.
+     */
+    public synchronized void replace(Segment[] old, Segment merged){
+    	    ArrayList<Segment> res=new ArrayList<Segment>();
+    	    for(Segment segment:segments){
+    	    	    if(!Arrays.asList(old).contains(segment)){
+    	    	    	    res.add(segment);
+    	    	    }
+    	    }
+    	    res.add(merged);
+    	    this.publish(res.toArray(new Segment[res.size()]));
+    }
+
+    /** The open segments in docID order, the array must not be changed */
+    Segment[] segments(){
+    	    return segments;
+    }
+
+    /** The directory of the segments */
+    File directory(){
+    	    return dir;
+    }
+
+
+    public void insert( String token, int docID, int offset ) {
+    	    throw new UnsupportedOperationException("A DiskIndex is read only");
+    }
+
+    public Iterator<String> getDictionary() {
+    	    TreeSet<String> words=new TreeSet<String>();
+    	    for(Segment segment:segments){
+    	    	    for(int i=0;i<segment.size();i++){
+    	    	    	    words.add(segment.term(i));
+    	    	    }
+    	    }
+    	    return words.iterator();
+    }
+
+    /**
+     *  Returns the postings of token in all segments, or null if no
+     *  segment has it. The segments hold increasing docIDs, so their lists
+     *  are appended in order. A list from a single segment stays mapped.
+     */
+    public PostingsList getPostings( String token ) {
+    	    return this.postings(segments,token);
+    }
+
+    public PostingsList search( Query query, int queryType, int rankingType, int structureType ) {
+    	    return this.search(query,queryType,rankingType,structureType,0);
+    }
+
+    /**
+     *  Searches the segments. The postings of the terms are taken from
+     *  the cache if they are there, the others are read in parallel. An
+     *  intersection starts with the cached lists, smallest first, and
+     *  takes the lists that are read in the order they arrive. A phrase
+     *  needs its lists in order and waits for all of them. The result
+     *  only holds docIDs, see docName().
+     */
+    public PostingsList search( Query query, int queryType, int rankingType, int structureType, int K ) {
+    	    LinkedList<String> terms=query.terms;
+    	    if(terms.size()==0){
+    	    	    return null;
+    	    }
+    	    if(queryType!=Index.INTERSECTION_QUERY && queryType!=Index.PHRASE_QUERY){
+    	    	    System.err.println("ERROR: Only intersection and phrase queries can be run on an index on disk");
+    	    	    return null;
+    	    }
+    	    Segment[] segments=this.segments;
+    	    //Only this thread writes lists, the prefetch threads return theirs through the futures
+    	    PostingsList[] lists=new PostingsList[terms.size()];
+    	    ArrayList<Read> reads=new ArrayList<Read>();
+    	    ArrayList<Future<PostingsList>> futures=new ArrayList<Future<PostingsList>>();
+    	    int i=0;
+    	    for(String term:terms){
+    	    	    lists[i]=cache.get(term,segments);
+    	    	    if(lists[i]==null){
+    	    	    	    reads.add(new Read(segments,term,i));
+    	    	    }
+    	    	    i++;
+    	    }
+
+    	    PostingsList res;
+    	    try{
+    	    	    //A single read is done by the query itself
+    	    	    CompletionService<PostingsList> done=null;
+    	    	    if(reads.size()>1 && prefetcher!=null){
+    	    	    	    done=new ExecutorCompletionService<PostingsList>(prefetcher);
+    	    	    	    for(Read read:reads){
+    	    	    	    	    futures.add(done.submit(read));
+    	    	    	    }
+    	    	    }
+    	    	    else{
+    	    	    	    for(Read read:reads){
+    	    	    	    	    lists[read.i]=read.call();
+    	    	    	    	    if(lists[read.i]==null){
+    	    	    	    	    	    //if atleast one term doesn't exist
+    	    	    	    	    	    return null;
+    	    	    	    	    }
+    	    	    	    }
+    	    	    	    reads.clear();
+    	    	    }
+
+    	    	    if(queryType==Index.INTERSECTION_QUERY){
+    	    	    	    ArrayList<PostingsList> ready=new ArrayList<PostingsList>();
+    	    	    	    for(PostingsList list:lists){
+    	    	    	    	    if(list!=null){
+    	    	    	    	    	    ready.add(list);
+    	    	    	    	    }
+    	    	    	    }
+    	    	    	    res=ready.isEmpty() ? null : HashedIndex.intersectAll(ready);
+    	    	    	    for(int n=0;n<reads.size();n++){
+    	    	    	    	    PostingsList list=done.take().get();
+    	    	    	    	    if(list==null){
+    	    	    	    	    	    //if atleast one term doesn't exist, the
+    	    	    	    	    	    //reads that are left only fill the cache
+    	    	    	    	    	    return null;
+    	    	    	    	    }
+    	    	    	    	    res=ready.isEmpty() && n==0 ? HashedIndex.live(list) : HashedIndex.intersect(res,list);
+    	    	    	    }
+    	    	    }
+    	    	    else{
+    	    	    	    for(int n=0;n<reads.size();n++){
+    	    	    	    	    lists[reads.get(n).i]=futures.get(n).get();
+    	    	    	    }
+    	    	    	    for(PostingsList list:lists){
+    	    	    	    	    if(list==null){
+    	    	    	    	    	    //if atleast one term doesn't exist
+    	    	    	    	    	    return null;
+    	    	    	    	    }
+    	    	    	    }
+    	    	    	    res=lists[0];
+    	    	    	    for(i=1;i<lists.length;i++){
+    	    	    	    	    res=HashedIndex.phraseIntersect(res,lists[i],1);
+    	    	    	    }
+    	    	    }
+    	    }
+    	    catch(InterruptedException e){
+    	    	    Thread.currentThread().interrupt();
+    	    	    return null;
+    	    }
+    	    catch(ExecutionException e){
+    	    	    throw new IllegalStateException("Could not read the postings",e.getCause());
+    	    }
+
+    	    if(res!=null && lists.length==1){
+    	    	    //The list of a single term is shared with the cache
+    	    	    PostingsList copy=new PostingsList();
+    	    	    for(i=0;i<res.size();i++){
+    	    	    	    copy.addEntry(res,i);
+    	    	    }
+    	    	    res=copy;
+    	    }
+    	    return res;
+    }
+
+    /**
+     *  Returns the name of document docID, or null if no segment has it.
+     *  The segment is found by binary search on firstDocID and the name is
+     *  read from its slot in the mapped .docs file.
+     */
+    public String docName( int docID ){
+    	    return this.name(segments,docID);
+    }
+
+    /** The cache of the postings of the query terms */
+    public PostingsCache cache(){
+    	    return cache;
+    }
+
+    public void cleanup() {
+    	    System.err.println("Postings cache: "+cache);
+    }
+
+    /** Nothing to flush, the segments are written by a HashedIndex */
+    public void flushIndex() {
+    }
+
+
+    /** The postings of token in segments */
+    private PostingsList postings(Segment[] segments, String token){
+    	    byte[] word=token.getBytes(StandardCharsets.UTF_8);
+    	    PostingsList res=null;
+    	    //False while res may be the mapped list of a segment
+    	    boolean copied=false;
+    	    for(Segment segment:segments){
+    	    	    PostingsList list=segment.getPostings(word);
+    	    	    if(list==null){
+    	    	    	    continue;
+    	    	    }
+    	    	    if(res==null){
+    	    	    	    res=list;
+    	    	    }
+    	    	    else if(res.size()>0 && list.size()>0 && list.docID(0)>res.lastDocID()){
+    	    	    	    //The encoded postings are appended as they are
+    	    	    	    if(!copied){
+    	    	    	    	    PostingsList copy=new PostingsList(true);
+    	    	    	    	    copy.appendAll(res);
+    	    	    	    	    res=copy;
+    	    	    	    	    copied=true;
+    	    	    	    }
+    	    	    	    res.appendAll(list);
+    	    	    }
+    	    	    else{
+    	    	    	    //The docIDs overlap, e.g. segments from an earlier run
+    	    	    	    res=HashedIndex.mergeLists(res,list);
+    	    	    	    copied=false;
+    	    	    }
+    	    }
+    	    return res;
+    }
+
+    /** The name of document docID in segments */
+    private String name(Segment[] segments, int docID){
+    	    //The last segment that starts at or before docID
+    	    int low=0;
+    	    int high=segments.length-1;
+    	    while(low<high){
+    	    	    int mid=(low+high+1)>>>1;
+    	    	    if(segments[mid].firstDocID()<=docID){
+    	    	    	    low=mid;
+    	    	    }
+    	    	    else{
+    	    	    	    high=mid-1;
+    	    	    }
+    	    }
+    	    return segments.length==0 ? null : segments[low].docName(docID);
+    }
+
+    /** Sorts the segments in docID order and makes them the open segments */
+    private void publish(Segment[] res){
+    	    Arrays.sort(res,new Comparator<Segment>(){
+    	    	    public int compare(Segment a, Segment b){
+    	    	    	    return a.firstDocID()<b.firstDocID() ? -1 : (a.firstDocID()==b.firstDocID() ? 0 : 1);
+    	    	    }
+    	    });
+    	    segments=res;
+    }
+
+    /**
+     *  Reads the postings of the i:th term of the query, with their pages,
+     *  and puts them in the cache. Returns them, null if no segment has
+     *  the term.
+     */
+    private class Read implements Callable<PostingsList> {
+
+    	    private final Segment[] segments;
+    	    private final String term;
+    	    /** The position of the term in the query */
+    	    private final int i;
+
+    	    Read(Segment[] segments, String term, int i){
+    	    	    this.segments=segments;
+    	    	    this.term=term;
+    	    	    this.i=i;
+    	    }
+
+    	    public PostingsList call(){
+    	    	    PostingsList list=postings(segments,term);
+    	    	    if(list!=null){
+    	    	    	    list.load();
+    	    	    	    cache.put(term,list,segments);
+    	    	    }
+    	    	    return list;
+    	    }
+    }
+}
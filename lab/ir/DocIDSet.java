@@ -0,0 +1,239 @@
+
+
+package ir;
+
+import java.util.Arrays;
+
+
+/**
+ *   A compressed set of docIDs in the style of a Roaring bitmap. The
+ *   docIDs are split in chunks of 65536 on their high 16 bits. A chunk
+ *   is stored as a sorted array of the low 16 bits (2 bytes a docID) or
+ *   as a bitmap up to its largest docID (1 bit a docID in the range),
+ *   whichever is smaller. A full chunk is thus a bitmap when it holds
+ *   more than 4096 docIDs, and two bitmap chunks are intersected a 64
+ *   bit word at a time.
+ */
+public class DocIDSet {
+
+
+    /** Chunk k holds the docIDs with high bits keys[k] */
+    private int[] keys;
+    /** The size of each chunk */
+    private int[] cardinalities;
+    /** Either the sorted low bits (arrays[k]) or the bitmap (bitmaps[k]) of each chunk */
+    private char[][] arrays;
+    private long[][] bitmaps;
+    private int nrOfChunks=0;
+    private int cardinality=0;
+
+
+    private DocIDSet(int capacity){
+    	    keys=new int[capacity];
+    	    cardinalities=new int[capacity];
+    	    arrays=new char[capacity][];
+    	    bitmaps=new long[capacity][];
+    }
+
+    /** Returns the set of the docIDs in list, which must be sorted on docID */
+    public static DocIDSet of(PostingsList list){
+    	    DocIDSet set=new DocIDSet(4);
+    	    PostingsCursor cur=list.cursor();
+    	    int key=-1;
+    	    char[] low=new char[Math.min(list.size(),1<<16)];
+    	    int n=0;
+    	    while(cur.next()){
+    	    	    int docID=cur.docID();
+    	    	    if(docID>>>16!=key){
+    	    	    	    set.addChunk(key,low,n);
+    	    	    	    key=docID>>>16;
+    	    	    	    n=0;
+    	    	    }
+    	    	    low[n++]=(char)docID;
+    	    }
+    	    set.addChunk(key,low,n);
+    	    return set;
+    }
+
+
+    /** Number of docIDs in the set */
+    public int cardinality(){
+    	    return cardinality;
+    }
+
+    public boolean contains(int docID){
+    	    int k=Arrays.binarySearch(keys,0,nrOfChunks,docID>>>16);
+    	    if(k<0){
+    	    	    return false;
+    	    }
+    	    char low=(char)docID;
+    	    if(bitmaps[k]!=null){
+    	    	    return (low>>>6)<bitmaps[k].length && (bitmaps[k][low>>>6] & (1L<<low))!=0;
+    	    }
+    	    return Arrays.binarySearch(arrays[k],low)>=0;
+    }
+
+    /** Returns the docIDs that are in both this set and other */
+    public DocIDSet and(DocIDSet other){
+    	    DocIDSet res=new DocIDSet(Math.max(1,Math.min(nrOfChunks,other.nrOfChunks)));
+    	    int k1=0;
+    	    int k2=0;
+    	    while(k1<nrOfChunks && k2<other.nrOfChunks){
+    	    	    if(keys[k1]<other.keys[k2]){
+    	    	    	    k1++;
+    	    	    }
+    	    	    else if(keys[k1]>other.keys[k2]){
+    	    	    	    k2++;
+    	    	    }
+    	    	    else{
+    	    	    	    res.andChunk(keys[k1],this,k1,other,k2);
+    	    	    	    k1++;
+    	    	    	    k2++;
+    	    	    }
+    	    }
+    	    return res;
+    }
+
+    /** Returns the docIDs in increasing order */
+    public int[] toArray(){
+    	    int[] docIDs=new int[cardinality];
+    	    int n=0;
+    	    for(int k=0;k<nrOfChunks;k++){
+    	    	    int high=keys[k]<<16;
+    	    	    if(bitmaps[k]!=null){
+    	    	    	    long[] bitmap=bitmaps[k];
+    	    	    	    for(int w=0;w<bitmap.length;w++){
+    	    	    	    	    long word=bitmap[w];
+    	    	    	    	    while(word!=0){
+    	    	    	    	    	    docIDs[n++]=high | (w<<6) | Long.numberOfTrailingZeros(word);
+    	    	    	    	    	    word&=word-1;
+    	    	    	    	    }
+    	    	    	    }
+    	    	    }
+    	    	    else{
+    	    	    	    char[] low=arrays[k];
+    	    	    	    for(int i=0;i<cardinalities[k];i++){
+    	    	    	    	    docIDs[n++]=high | low[i];
+    	    	    	    }
+    	    	    }
+    	    }
+    	    return docIDs;
+    }
+
+    /** Number of bytes used by the chunks */
+    public long memoryBytes(){
+    	    long bytes=0;
+    	    for(int k=0;k<nrOfChunks;k++){
+    	    	    bytes+=bitmaps[k]!=null ? 8L*bitmaps[k].length : 2L*arrays[k].length;
+    	    }
+    	    return bytes+12L*keys.length;
+    }
+
+
+    /** Adds the n sorted low bits in low as chunk key, as an array or a bitmap */
+    private void addChunk(int key, char[] low, int n){
+    	    if(n==0){
+    	    	    return;
+    	    }
+    	    int words=(low[n-1]>>>6)+1;
+    	    if(2*n<=8*words){
+    	    	    addChunk(key,n,Arrays.copyOf(low,n),null);
+    	    	    return;
+    	    }
+    	    long[] bitmap=new long[words];
+    	    for(int i=0;i<n;i++){
+    	    	    bitmap[low[i]>>>6]|=1L<<low[i];
+    	    }
+    	    addChunk(key,n,null,bitmap);
+    }
+
+    private void addChunk(int key, int cardinality, char[] array, long[] bitmap){
+    	    if(cardinality==0){
+    	    	    return;
+    	    }
+    	    if(nrOfChunks==keys.length){
+    	    	    int capacity=keys.length*2;
+    	    	    keys=Arrays.copyOf(keys,capacity);
+    	    	    cardinalities=Arrays.copyOf(cardinalities,capacity);
+    	    	    arrays=Arrays.copyOf(arrays,capacity);
+    	    	    bitmaps=Arrays.copyOf(bitmaps,capacity);
+    	    }
+    	    keys[nrOfChunks]=key;
+    	    cardinalities[nrOfChunks]=cardinality;
+    	    arrays[nrOfChunks]=array;
+    	    bitmaps[nrOfChunks]=bitmap;
+    	    nrOfChunks++;
+    	    this.cardinality+=cardinality;
+    }
+
+    /** Adds the intersection of chunk k1 of a and chunk k2 of b as chunk key */
+    private void andChunk(int key, DocIDSet a, int k1, DocIDSet b, int k2){
+    	    long[] bitmap1=a.bitmaps[k1];
+    	    long[] bitmap2=b.bitmaps[k2];
+    	    if(bitmap1!=null && bitmap2!=null){
+    	    	    //Bitmap AND, a word at a time
+    	    	    int words=Math.min(bitmap1.length,bitmap2.length);
+    	    	    long[] bitmap=new long[words];
+    	    	    int n=0;
+    	    	    for(int w=0;w<words;w++){
+    	    	    	    bitmap[w]=bitmap1[w] & bitmap2[w];
+    	    	    	    n+=Long.bitCount(bitmap[w]);
+    	    	    }
+    	    	    if(2*n>8*words){
+    	    	    	    addChunk(key,n,null,bitmap);
+    	    	    	    return;
+    	    	    }
+    	    	    //Few enough to go back to an array
+    	    	    char[] low=new char[n];
+    	    	    int i=0;
+    	    	    for(int w=0;w<words;w++){
+    	    	    	    long word=bitmap[w];
+    	    	    	    while(word!=0){
+    	    	    	    	    low[i++]=(char)((w<<6) | Long.numberOfTrailingZeros(word));
+    	    	    	    	    word&=word-1;
+    	    	    	    }
+    	    	    }
+    	    	    addChunk(key,n,low,null);
+    	    	    return;
+    	    }
+    	    if(bitmap1!=null || bitmap2!=null){
+    	    	    //Probe the bitmap with the array
+    	    	    long[] bitmap=bitmap1!=null ? bitmap1 : bitmap2;
+    	    	    char[] array=bitmap1!=null ? b.arrays[k2] : a.arrays[k1];
+    	    	    int arrayLength=bitmap1!=null ? b.cardinalities[k2] : a.cardinalities[k1];
+    	    	    char[] low=new char[arrayLength];
+    	    	    int n=0;
+    	    	    for(int i=0;i<arrayLength;i++){
+    	    	    	    char c=array[i];
+    	    	    	    if((c>>>6)<bitmap.length && (bitmap[c>>>6] & (1L<<c))!=0){
+    	    	    	    	    low[n++]=c;
+    	    	    	    }
+    	    	    }
+    	    	    addChunk(key,n,Arrays.copyOf(low,n),null);
+    	    	    return;
+    	    }
+    	    //Merge the two sorted arrays
+    	    char[] array1=a.arrays[k1];
+    	    char[] array2=b.arrays[k2];
+    	    int length1=a.cardinalities[k1];
+    	    int length2=b.cardinalities[k2];
+    	    char[] low=new char[Math.min(length1,length2)];
+    	    int n=0;
+    	    int i1=0;
+    	    int i2=0;
+    	    while(i1<length1 && i2<length2){
+    	    	    if(array1[i1]<array2[i2]){
+    	    	    	    i1++;
+    	    	    }
+    	    	    else if(array1[i1]>array2[i2]){
+    	    	    	    i2++;
+    	    	    }
+    	    	    else{
+    	    	    	    low[n++]=array1[i1];
+    	    	    	    i1++;
+    	    	    	    i2++;
+    	    	    }
+    	    }
+    	    addChunk(key,n,Arrays.copyOf(low,n),null);
+    }
+}
@@ -0,0 +1,358 @@
+
+
+package ir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+/**
+ *   Per document metadata indexed directly by docID: the length of the
+ *   document in tokens, the path of the file and when the file was last
+ *   modified. The paths are stored UTF-8 encoded in one byte arena, so
+ *   there is no String or map entry kept per document.
+ *
+ *   A document that is deleted or replaced by a newer version keeps its
+ *   docID and postings, it is only marked in a tombstone bitset that the
+ *   searches check with isDeleted().
+ *
+ *   nameMap() and lengthMap() give Map views keyed by ""+docID for code
+ *   that still uses the old Index.docIDs and Index.docLengths maps.
+ */
+public class DocumentTable {
+
+    private static final int INITIAL_CAPACITY=1024;
+
+    /** Length of document docID in tokens, -1 if not set */
+    private int[] lengths=new int[0];
+
+    /** The path of document docID is in arena[nameStarts[docID]..+nameLengths[docID]), nameStarts is -1 if not set */
+    private int[] nameStarts=new int[0];
+    private int[] nameLengths=new int[0];
+    private byte[] arena=new byte[INITIAL_CAPACITY*16];
+    private int arenaLength=0;
+
+    /** The lastModified() of the file of document docID when it was indexed, 0 if not set */
+    private long[] modified=new long[0];
+
+    /** The deleted docIDs */
+    private BitSet deleted=new BitSet();
+
+    private int nrOfNames=0;
+    private int nrOfLengths=0;
+    private int nrOfDeleted=0;
+    /** The largest docID with a name, -1 if there is none */
+    private int maxDocID=-1;
+
+    private Map<String,String> nameMap;
+    private Map<String,Integer> lengthMap;
+
+
+    public DocumentTable(){
+
+    }
+
+
+    /** Number of documents with a name that are not deleted, i.e. the number of documents in the corpus */
+    public int size(){
+    	    return nrOfNames-nrOfDeleted;
+    }
+
+    /**
+     *  Number of documents with a name, also the deleted ones. Their
+     *  postings are kept, so this is the number of documents the
+     *  document frequency of a term is counted over.
+     */
+    public int sizeWithDeleted(){
+    	    return nrOfNames;
+    }
+
+    /** The largest docID that has a name, -1 if the table is empty. A new document can get the docID after it */
+    public int maxDocID(){
+    	    return maxDocID;
+    }
+
+    /** Number of docIDs the table has room for, all docIDs are smaller */
+    public int capacity(){
+    	    return nameStarts.length;
+    }
+
+    /** Returns true if document docID has a name */
+    public boolean contains(int docID){
+    	    return docID>=0 && docID<nameStarts.length && nameStarts[docID]>=0;
+    }
+
+    /** Returns the path of document docID, or null if it is not set */
+    public String name(int docID){
+    	    if(!contains(docID)){
+    	    	    return null;
+    	    }
+    	    return new String(arena,nameStarts[docID],nameLengths[docID],StandardCharsets.UTF_8);
+    }
+
+    public void setName(int docID, String name){
+    	    ensureCapacity(docID);
+    	    if(nameStarts[docID]<0){
+    	    	    nrOfNames++;
+    	    }
+    	    maxDocID=Math.max(maxDocID,docID);
+    	    byte[] bytes=name.getBytes(StandardCharsets.UTF_8);
+    	    if(arenaLength+bytes.length>arena.length){
+    	    	    arena=Arrays.copyOf(arena,Math.max(arena.length*2,arenaLength+bytes.length));
+    	    }
+    	    System.arraycopy(bytes,0,arena,arenaLength,bytes.length);
+    	    nameStarts[docID]=arenaLength;
+    	    nameLengths[docID]=bytes.length;
+    	    arenaLength+=bytes.length;
+    }
+
+    /** Returns the length of document docID, or -1 if it is not set */
+    public int length(int docID){
+    	    if(docID<0 || docID>=lengths.length){
+    	    	    return -1;
+    	    }
+    	    return lengths[docID];
+    }
+
+    public void setLength(int docID, int length){
+    	    ensureCapacity(docID);
+    	    if(lengths[docID]<0){
+    	    	    nrOfLengths++;
+    	    }
+    	    lengths[docID]=length;
+    }
+
+    /** Writes the table up to maxDocID(), the slots after it are not saved, see Snapshot */
+    void write(DataOutputStream out) throws IOException {
+    	    int capacity=Math.min(maxDocID+1,nameStarts.length);
+    	    out.writeInt(capacity);
+    	    out.writeInt(nrOfNames);
+    	    out.writeInt(nrOfLengths);
+    	    Snapshot.writeInts(out,lengths,capacity);
+    	    Snapshot.writeInts(out,nameStarts,capacity);
+    	    Snapshot.writeInts(out,nameLengths,capacity);
+    	    Snapshot.writeLongs(out,modified,capacity);
+    	    long[] words=deleted.toLongArray();
+    	    out.writeInt(words.length);
+    	    Snapshot.writeLongs(out,words,words.length);
+    	    out.writeInt(arenaLength);
+    	    out.write(arena,0,arenaLength);
+    }
+
+    /** Replaces the documents with a table written by write(), from the position of buf */
+    void read(ByteBuffer buf){
+    	    int capacity=buf.getInt();
+    	    nrOfNames=buf.getInt();
+    	    nrOfLengths=buf.getInt();
+    	    lengths=Snapshot.readInts(buf,capacity);
+    	    nameStarts=Snapshot.readInts(buf,capacity);
+    	    nameLengths=Snapshot.readInts(buf,capacity);
+    	    modified=Snapshot.readLongs(buf,capacity);
+    	    deleted=BitSet.valueOf(Snapshot.readLongs(buf,buf.getInt()));
+    	    nrOfDeleted=deleted.cardinality();
+    	    arenaLength=buf.getInt();
+    	    arena=Snapshot.readBytes(buf,arenaLength);
+    	    //Older snapshots saved the empty slots as well
+    	    maxDocID=capacity-1;
+    	    while(maxDocID>=0 && nameStarts[maxDocID]<0){
+    	    	    maxDocID--;
+    	    }
+    }
+
+    /** Returns when the file of document docID was last modified, 0 if it is not set */
+    public long modified(int docID){
+    	    if(docID<0 || docID>=modified.length){
+    	    	    return 0;
+    	    }
+    	    return modified[docID];
+    }
+
+    public void setModified(int docID, long lastModified){
+    	    ensureCapacity(docID);
+    	    modified[docID]=lastModified;
+    }
+
+    /** Marks document docID as deleted, its postings are skipped by the searches */
+    public void delete(int docID){
+    	    if(contains(docID) && !deleted.get(docID)){
+    	    	    deleted.set(docID);
+    	    	    nrOfDeleted++;
+    	    }
+    }
+
+    /** Returns true if document docID has been deleted */
+    public boolean isDeleted(int docID){
+    	    return nrOfDeleted>0 && deleted.get(docID);
+    }
+
+    /** Number of deleted documents */
+    public int nrOfDeleted(){
+    	    return nrOfDeleted;
+    }
+
+    /** Removes all documents */
+    public void clear(){
+    	    Arrays.fill(lengths,-1);
+    	    Arrays.fill(nameStarts,-1);
+    	    arenaLength=0;
+    	    Arrays.fill(modified,0);
+    	    deleted.clear();
+    	    nrOfNames=0;
+    	    nrOfLengths=0;
+    	    nrOfDeleted=0;
+    	    maxDocID=-1;
+    }
+
+    /** Map view of the names keyed by ""+docID */
+    public Map<String,String> nameMap(){
+    	    if(nameMap==null){
+    	    	    nameMap=new NameMap();
+    	    }
+    	    return nameMap;
+    }
+
+    /** Map view of the lengths keyed by ""+docID */
+    public Map<String,Integer> lengthMap(){
+    	    if(lengthMap==null){
+    	    	    lengthMap=new LengthMap();
+    	    }
+    	    return lengthMap;
+    }
+
+
+    private void ensureCapacity(int docID){
+    	    if(docID<0){
+    	    	    throw new IllegalArgumentException("Negative docID: "+docID);
+    	    }
+    	    if(docID<nameStarts.length){
+    	    	    return;
+    	    }
+    	    int oldCapacity=nameStarts.length;
+    	    int newCapacity=Math.max(Math.max(oldCapacity*2,INITIAL_CAPACITY),docID+1);
+    	    lengths=Arrays.copyOf(lengths,newCapacity);
+    	    nameStarts=Arrays.copyOf(nameStarts,newCapacity);
+    	    nameLengths=Arrays.copyOf(nameLengths,newCapacity);
+    	    modified=Arrays.copyOf(modified,newCapacity);
+    	    Arrays.fill(lengths,oldCapacity,newCapacity,-1);
+    	    Arrays.fill(nameStarts,oldCapacity,newCapacity,-1);
+    }
+
+    /** Parses a ""+docID key, returns -1 if it is not a docID */
+    private static int docID(Object key){
+    	    if(!(key instanceof String)){
+    	    	    return -1;
+    	    }
+    	    try{
+    	    	    return Integer.parseInt((String)key);
+    	    }
+    	    catch(NumberFormatException e){
+    	    	    return -1;
+    	    }
+    }
+
+
+    /**
+     *  Base for the two map views. The entries are the docIDs for which
+     *  value(docID) is not null, in increasing docID order.
+     */
+    private abstract class DocumentMap<V> extends AbstractMap<String,V> {
+
+    	    abstract V value(int docID);
+
+    	    public V get(Object key){
+    	    	    return value(docID(key));
+    	    }
+
+    	    public boolean containsKey(Object key){
+    	    	    return value(docID(key))!=null;
+    	    }
+
+    	    public void clear(){
+    	    	    DocumentTable.this.clear();
+    	    }
+
+    	    public Set<Map.Entry<String,V>> entrySet(){
+    	    	    return new AbstractSet<Map.Entry<String,V>>(){
+    	    	    	    public int size(){
+    	    	    	    	    return DocumentMap.this.size();
+    	    	    	    }
+    	    	    	    public Iterator<Map.Entry<String,V>> iterator(){
+    	    	    	    	    return new Iterator<Map.Entry<String,V>>(){
+    	    	    	    	    	    private int next=find(0);
+
+    	    	    	    	    	    private int find(int from){
+    	    	    	    	    	    	    while(from<capacity() && value(from)==null){
+    	    	    	    	    	    	    	    from++;
+    	    	    	    	    	    	    }
+    	    	    	    	    	    	    return from;
+    	    	    	    	    	    }
+    	    	    	    	    	    public boolean hasNext(){
+    	    	    	    	    	    	    return next<capacity();
+    	    	    	    	    	    }
+    	    	    	    	    	    public Map.Entry<String,V> next(){
+    	    	    	    	    	    	    if(!hasNext()){
+    	    	    	    	    	    	    	    throw new NoSuchElementException();
+    	    	    	    	    	    	    }
+    	    	    	    	    	    	    int docID=next;
+    	    	    	    	    	    	    next=find(next+1);
+    	    	    	    	    	    	    return new AbstractMap.SimpleImmutableEntry<String,V>(""+docID,value(docID));
+    	    	    	    	    	    }
+    	    	    	    	    };
+    	    	    	    }
+    	    	    };
+    	    }
+    }
+
+    private class NameMap extends DocumentMap<String> {
+
+    	    String value(int docID){
+    	    	    return name(docID);
+    	    }
+
+    	    public int size(){
+    	    	    return nrOfNames;
+    	    }
+
+    	    public String put(String key, String value){
+    	    	    int docID=docID(key);
+    	    	    if(docID<0){
+    	    	    	    throw new IllegalArgumentException("Not a docID: "+key);
+    	    	    }
+    	    	    String old=name(docID);
+    	    	    setName(docID,value);
+    	    	    return old;
+    	    }
+    }
+
+    private class LengthMap extends DocumentMap<Integer> {
+
+    	    Integer value(int docID){
+    	    	    int length=length(docID);
+    	    	    return length<0 ? null : length;
+    	    }
+
+    	    public int size(){
+    	    	    return nrOfLengths;
+    	    }
+
+    	    public Integer put(String key, Integer value){
+    	    	    int docID=docID(key);
+    	    	    if(docID<0){
+    	    	    	    throw new IllegalArgumentException("Not a docID: "+key);
+    	    	    }
+    	    	    Integer old=value(docID);
+    	    	    setLength(docID,value);
+    	    	    return old;
+    	    }
+    }
+}
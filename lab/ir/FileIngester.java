@@ -0,0 +1,188 @@
+
+
+package ir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+
+
+/**
+ *   Reads the files to index. A file is opened once and read through a
+ *   FileChannel into a buffer that is used again for the next file.
+ *   Its type is told from the bytes that were read: the text of a PDF
+ *   is extracted from them, other files are decoded as charset() or
+ *   tokenized by a ByteTokenizer. One FileIngester is used by one
+ *   thread at a time.
+ */
+class FileIngester {
+
+    /**
+     *  The charset of the text files that are not valid UTF-8, such as
+     *  Latin-1 text, which it is a superset of.
+     */
+    static final Charset CHARSET=Charset.forName("windows-1252");
+
+    private ByteBuffer buffer=ByteBuffer.allocate(1<<16);
+
+
+    /**
+     *  Reads the file into the buffer and returns it, with the contents
+     *  from position 0 to the limit. It is only valid until the next call.
+     */
+    ByteBuffer read(Path file) throws IOException {
+    	    FileChannel channel=FileChannel.open(file,StandardOpenOption.READ);
+    	    try{
+    	    	    long size=channel.size();
+    	    	    if(size>=Integer.MAX_VALUE-8){
+    	    	    	    throw new IOException("Too large to index: "+file);
+    	    	    }
+    	    	    if(size>buffer.capacity()){
+    	    	    	    buffer=ByteBuffer.allocate(Math.max((int)size,buffer.capacity()*2));
+    	    	    }
+    	    	    buffer.clear();
+    	    	    //Up to the size the file had when it was opened, so no read is needed just to find the end
+    	    	    while(buffer.position()<size){
+    	    	    	    if(channel.read(buffer)<0){
+    	    	    	    	    break;
+    	    	    	    }
+    	    	    }
+    	    	    buffer.flip();
+    	    	    return buffer;
+    	    }
+    	    finally{
+    	    	    channel.close();
+    	    }
+    }
+
+    /** Reader of the text of the file, only valid until the next call */
+    Reader open(Path file) throws IOException {
+    	    ByteBuffer bytes=read(file);
+    	    if(isPDF(bytes)){
+    	    	    String contents=pdfContents(bytes);
+    	    	    if(contents!=null){
+    	    	    	    return new StringReader(contents);
+    	    	    }
+    	    }
+    	    return new InputStreamReader(new ByteArrayInputStream(bytes.array(),0,bytes.limit()),charset(bytes));
+    }
+
+    /**
+     *  The charset of the text from position 0 to the limit: UTF-8 if it
+     *  is valid UTF-8, which ASCII is, otherwise CHARSET. The text is then
+     *  decoded the same way as a query, so that e.g. an  is normalized
+     *  to an e in both and not split at its second byte.
+     */
+    static Charset charset(ByteBuffer bytes){
+    	    return isUTF8(bytes) ? StandardCharsets.UTF_8 : CHARSET;
+    }
+
+    /** True if the bytes from position 0 to the limit are well formed UTF-8 */
+    static boolean isUTF8(ByteBuffer bytes){
+    	    int limit=bytes.limit();
+    	    int i=0;
+    	    while(i<limit){
+    	    	    int b=bytes.get(i++) & 0xFF;
+    	    	    if(b<0x80){
+    	    	    	    continue;
+    	    	    }
+    	    	    int n;
+    	    	    int min;
+    	    	    if(b>=0xC2 && b<=0xDF){
+    	    	    	    n=1;
+    	    	    	    min=0x80;
+    	    	    }
+    	    	    else if(b>=0xE0 && b<=0xEF){
+    	    	    	    n=2;
+    	    	    	    min=0x800;
+    	    	    }
+    	    	    else if(b>=0xF0 && b<=0xF4){
+    	    	    	    n=3;
+    	    	    	    min=0x10000;
+    	    	    }
+    	    	    else{
+    	    	    	    return false;
+    	    	    }
+    	    	    if(i+n>limit){
+    	    	    	    return false;
+    	    	    }
+    	    	    int cp=b & (0x3F>>n);
+    	    	    for(int k=0;k<n;k++){
+    	    	    	    int c=bytes.get(i++) & 0xFF;
+    	    	    	    if((c & 0xC0)!=0x80){
+    	    	    	    	    return false;
+    	    	    	    }
+    	    	    	    cp=(cp<<6) | (c & 0x3F);
+    	    	    }
+    	    	    //No overlong forms, surrogates or code points above U+10FFFF
+    	    	    if(cp<min || (cp>=0xD800 && cp<=0xDFFF) || cp>0x10FFFF){
+    	    	    	    return false;
+    	    	    }
+    	    }
+    	    return true;
+    }
+
+    /** True if the bytes start like a PDF file */
+    static boolean isPDF(ByteBuffer bytes){
+    	    return bytes.limit()>=4 && bytes.get(0)=='%' && bytes.get(1)=='P' && bytes.get(2)=='D' && bytes.get(3)=='F';
+    }
+
+
+    /**
+     *  The text of the PDF, from PdfExtractor.shared(). Null if it could
+     *  not be parsed, an IOException if the extraction timed out.
+     */
+    static String pdfContents(ByteBuffer bytes) throws IOException {
+    	    return PdfExtractor.shared().text(bytes);
+    }
+
+
+    /**
+     *  Visits the readable files under a directory, in the order of the
+     *  directory listings, like the recursion over File.list() did. The
+     *  directories and files that cannot be read are skipped.
+     */
+    abstract static class Walker extends SimpleFileVisitor<Path> {
+
+    	    /** Called for each readable file, attrs are read while listing the directory */
+    	    abstract void file(Path file, BasicFileAttributes attrs) throws IOException;
+
+    	    void walk(File root) throws IOException {
+    	    	    Files.walkFileTree(root.toPath(),EnumSet.of(FileVisitOption.FOLLOW_LINKS),Integer.MAX_VALUE,this);
+    	    }
+
+    	    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs){
+    	    	    return Files.isReadable(dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+    	    }
+
+    	    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+    	    	    if(Files.isReadable(file)){
+    	    	    	    this.file(file,attrs);
+    	    	    }
+    	    	    return FileVisitResult.CONTINUE;
+    	    }
+
+    	    public FileVisitResult visitFileFailed(Path file, IOException e){
+    	    	    return FileVisitResult.CONTINUE;
+    	    }
+
+    	    public FileVisitResult postVisitDirectory(Path dir, IOException e){
+    	    	    return FileVisitResult.CONTINUE;
+    	    }
+    }
+}
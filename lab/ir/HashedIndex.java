@@ -13,20 +13,34 @@ package ir;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Set;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.lang.Math;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 
 
 /**
- *   Implements an inverted index as a Hashtable from words to PostingsLists.
+ *   Implements an inverted index from words to PostingsLists. The words
+ *   are given int ids by a TermDictionary and the PostingsLists are kept
+ *   in an array indexed by the id.
  */
 public class HashedIndex implements Index {
 
-    /** The index as a hashtable. */
-    private HashMap<String,PostingsList> index = new HashMap<String,PostingsList>(10000);
+    /** The words of the index */
+    private TermDictionary dictionary=new TermDictionary();
+    
+    /** The postings of the word with id i are in index[i] (null if none) */
+    private PostingsList[] index=new PostingsList[10000];
+    
+    /** Score bounds of index[i], computed by the first ranked query that needs them */
+    private TermBounds[] bounds=new TermBounds[10000];
+    
+    /** DocIDSets of the dense lists in index[], built by the first intersection that needs them */
+    private DocIDSet[] docIDSets=new DocIDSet[10000];
 
     private int filesProcessedSinceClear=0;
     private int maxFilesProcessedBeforeClear=10000;
@@ -35,24 +49,66 @@ public class HashedIndex implements Index {
     
     private String filePrefix="index";
     
-    private String indexInfoDirectory="indexInfo";
-    private String docNamesFile="IndexDocNames.txt";
-    private String docLengthFile="IndexDocLength.txt";
+    /** The segments written by the flushes, searched if SearchGUI.saveIndex is set */
+    private DiskIndex diskIndex;
+    /** Merges the segments of diskIndex in the background */
+    private MergeScheduler mergeScheduler;
     
     private HashMap<Integer,Double> pageRanks;
     private HashMap<String,Integer> pageRankNamesToDocID;
+    /** False until the PageRank files are read, an index opened from a Snapshot reads them when a new document needs a PageRank */
+    private boolean pageRanksRead;
+    /** The PageRank of every docID, NaN if it has none, joined from pageRanks when first needed */
+    private double[] docPageRanks;
+    
+    /** The lists of an index opened from a Snapshot, null otherwise */
+    private SnapshotPostings snapshotPostings;
     
-    private final boolean OPTIMIZATION=true;
+    /** Terms with a lower idf are dropped if SearchGUI.idfCutoff is set */
     private final double IDF_THRESHOLD=1.5;
+    /** Relative slack on the score bounds, so rounding never prunes a document */
+    private final double BOUND_SLACK=1e-9;
+    /** A list is dense if it holds more than 1/DENSE_FRACTION of the documents */
+    private final int DENSE_FRACTION=16;
     
     private int SUBPHRASE_K=20;
     private double SUBPHRASE_SCALE=0.5;
     
-    private BiwordIndex biwordIndex=new BiwordIndex();
+    private BiwordIndex biwordIndex=new BiwordIndex(dictionary);
     
     public HashedIndex(){
     	    pageRanks=this.readPageRankFromFile();
-    	    
+    	    pageRanksRead=true;
+    }
+    
+    /**
+     *  Opens an index written by write() from the position of buf, see
+     *  Snapshot. The documents replace those in Index.documents.
+     */
+    HashedIndex(ByteBuffer buf){
+    	    this.documents.read(buf);
+    	    dictionary=new TermDictionary(buf);
+    	    int capacity=Math.max(dictionary.size(),1);
+    	    index=new PostingsList[capacity];
+    	    bounds=new TermBounds[capacity];
+    	    docIDSets=new DocIDSet[capacity];
+    	    snapshotPostings=new SnapshotPostings(buf);
+    	    biwordIndex=new BiwordIndex(dictionary,buf);
+    	    docPageRanks=Snapshot.readDoubles(buf,buf.getInt());
+    }
+    
+    /** Writes the index, see Snapshot */
+    void write(DataOutputStream out) throws IOException {
+    	    this.documents.write(out);
+    	    dictionary.write(out);
+    	    for(int termID=0;termID<dictionary.size();termID++){
+    	    	    this.postings(termID);
+    	    }
+    	    SnapshotPostings.write(out,index,dictionary.size());
+    	    biwordIndex.write(out);
+    	    double[] pageRanks=this.joinPageRanks(docPageRanks);
+    	    out.writeInt(pageRanks.length);
+    	    Snapshot.writeDoubles(out,pageRanks,pageRanks.length);
     }
     
 
@@ -60,6 +116,18 @@ public class HashedIndex implements Index {
      *  Inserts this token in the index.
      */
     public void insert( String token, int docID, int offset ) {
+    	    this.insert(dictionary.add(token),docID,offset);
+    }
+
+    /**
+     *  Inserts the token with the UTF-8 bytes term[start..start+length),
+     *  without making a String of it.
+     */
+    void insert( byte[] term, int start, int length, int docID, int offset ) {
+    	    this.insert(dictionary.add(term,start,length),docID,offset);
+    }
+
+    private void insert( int termID, int docID, int offset ) {
     	    
     	//If we should save the index to disk (Task 1.6 lab1)
     	if(SearchGUI.saveIndex){
@@ -72,10 +140,14 @@ public class HashedIndex implements Index {
     		
     			//Write the current index to files
     			this.writeCurrentIndexToFiles();
-    			//Clear the index
-    			index.clear();
-    			this.docIDs.clear();
-    			this.docLengths.clear();
+    			//Clear the index, but keep the name of the document
+    			//that is being indexed, it goes in the next segment
+    			String docName=this.documents.name(docID);
+    			Arrays.fill(index,null);
+    			Arrays.fill(bounds,null);
+    			Arrays.fill(docIDSets,null);
+    			this.documents.clear();
+    			this.documents.setName(docID,docName);
     			filesProcessedSinceClear=0;
     		
     			}
@@ -88,27 +160,19 @@ public class HashedIndex implements Index {
     		    	    
     	}
     	   
-    	PostingsList list=index.get(token);
+    	this.ensureCapacity(termID);
+    	PostingsList list=this.postings(termID);
 	
 	if(list==null){
-		list=new PostingsList();
-		index.put(token,list);
-	}
-	//If there is no entry for the docID
-	if(!list.checkContains(docID)){
-		PostingsEntry newEntry=new PostingsEntry(docID);
-		newEntry.setDocName(this.docIDs.get(""+docID));
-		//System.err.println(this.docIDs.get(""+docID));
-		newEntry.addOffset(offset);
-		list.addEntry(newEntry);	
-	}
-	//Else if there already is a entry just add the offset
-	else{
-		list.addOffsetToLastEntry(offset); 
+		list=new PostingsList(true);
+		index[termID]=list;
 	}
+	//Adds a new entry for the docID, or the offset to the existing entry
+	//if there already is one (the docIDs arrive in increasing order)
+	list.addPosting(docID,offset);
 	
 	//Also create the biword index
-		biwordIndex.insert(token,docID,offset);
+		biwordIndex.insert(termID,docID,offset);
 	
 	
 	if(lastDocID!=docID){
@@ -118,14 +182,62 @@ public class HashedIndex implements Index {
 	
     }
     
+    /**
+     *  Adds the words of a shard built by a parallel Indexer. The docIDs
+     *  of the shard must be larger than all docIDs here, so its lists are
+     *  appended to ours. The new words get their ids in the order they
+     *  first occur in the shard, which are the ids inserting the
+     *  documents one by one would have given them.
+     *  @return the ids here of the words of the shard, for addShardBiwords()
+     */
+    int[] addShard(IndexShard shard){
+    	    TermDictionary words=shard.dictionary;
+    	    int[] termIDs=new int[words.size()];
+    	    for(int id=0;id<words.size();id++){
+    	    	    int termID=dictionary.add(words,id);
+    	    	    termIDs[id]=termID;
+    	    	    this.ensureCapacity(termID);
+    	    	    PostingsList list=this.postings(termID);
+    	    	    if(list==null){
+    	    	    	    index[termID]=shard.index[id];
+    	    	    }
+    	    	    else{
+    	    	    	    list.appendAll(shard.index[id]);
+    	    	    	    bounds[termID]=null;
+    	    	    	    docIDSets[termID]=null;
+    	    	    }
+    	    }
+    	    filesProcessed+=shard.lengths.length;
+    	    return termIDs;
+    }
+    
+    /**
+     *  Adds the biwords of a shard after addShard() has added its words.
+     *  Only the biword index is changed, so this can run in another thread
+     *  while addShard() adds the words of the next shard.
+     */
+    void addShardBiwords(IndexShard shard, int[] termIDs){
+    	    biwordIndex.addShard(shard.biwordIndex,termIDs);
+    }
+    
+    /** Makes room in index for the word with id termID */
+    private void ensureCapacity(int termID){
+    	    if(termID>=index.length){
+    	    	    index=Arrays.copyOf(index,Math.max(index.length*2,termID+1));
+    	    	    bounds=Arrays.copyOf(bounds,index.length);
+    	    	    docIDSets=Arrays.copyOf(docIDSets,index.length);
+    	    }
+    }
+    
     public void flushIndex(){
     
     	System.err.println("Flushing the current index");
     	    
 	this.writeCurrentIndexToFiles();
-	index.clear();
-	this.docIDs.clear();
-    	this.docLengths.clear();
+	Arrays.fill(index,null);
+	Arrays.fill(bounds,null);
+	Arrays.fill(docIDSets,null);
+	this.documents.clear();
     	    
     }
 
@@ -134,9 +246,13 @@ public class HashedIndex implements Index {
      *  Returns all the words in the index.
      */
     public Iterator<String> getDictionary() {
-	Set<String> keySet=index.keySet();
-	Iterator<String> it=keySet.iterator();
-	return it;
+	ArrayList<String> words=new ArrayList<String>();
+	for(int termID=0;termID<dictionary.size() && termID<index.length;termID++){
+		if(this.postings(termID)!=null){
+			words.add(dictionary.term(termID));
+		}
+	}
+	return words.iterator();
     }
 
 
@@ -145,8 +261,11 @@ public class HashedIndex implements Index {
      *  if the term is not in the index.
      */
     public PostingsList getPostings( String token ) {
-	PostingsList list=index.get(token);
-	return list;
+	int termID=dictionary.lookup(token);
+	if(termID<0 || termID>=index.length){
+		return null;
+	}
+	return this.postings(termID);
     }
 
 
@@ -154,130 +273,45 @@ public class HashedIndex implements Index {
      *  Searches the index for postings matching the query.
      */
     public PostingsList search( Query query, int queryType, int rankingType, int structureType ) {
+	return this.search(query,queryType,rankingType,structureType,0);
+    }
+
+
+    /**
+     *  Searches the index for postings matching the query. A ranked
+     *  query only returns the K best documents (all of them if K==0).
+     */
+    public PostingsList search( Query query, int queryType, int rankingType, int structureType, int K ) {
 	
     	LinkedList<String> terms=query.terms;
     		
     	int nrQTerms=query.size();
     	    
-    	File indexDir=new File(filePrefix);
-    	    
     	if(queryType==Index.INTERSECTION_QUERY){
     	    
     		//If the index is saved on disk
     		if(SearchGUI.saveIndex){
-    			
-    			ArrayList<PostingsList> lists=new ArrayList<PostingsList>();
-    			
-    			for(int i=0;i<nrQTerms;i++){
-    				String curTerm=terms.get(i);
-    				try{
-    					//If the filename is too large
-    					String fileName=curTerm;
-    					if(curTerm.length()>100){
-    						fileName=fileName.substring(0,100);
-    					}
-    					File file=new File(indexDir,fileName);
-    					if(file.exists()){
-    						ObjectInputStream oins=new ObjectInputStream(new FileInputStream(file));
-    						IndexEntry ent=(IndexEntry) oins.readObject();
-    						if(!ent.getTerm().equals(curTerm)){
-    							System.err.println("ERROR: The terms doesn't match");	
-    							//System.err.println("Ent.getTerm="+ent.getTerm());
-    							//System.err.println("CurTerm="+curTerm);
-    						}
-    						lists.add(ent.getList());
-    						oins.close();
-    					}
-    					else{
-    						//if atleast one term doesn't exist
-    						return null;
-    					}
-    				}
-    				catch(Exception ex){
-    					ex.printStackTrace();	
-    				}	
-    			}
-    			
-    			if(lists.size()==0){
-    				return null;	
-    			}
-    			
-    			PostingsList res=lists.get(0);
-    			
-    			for(int i=1;i<nrQTerms;i++){
-    				res=this.intersect(res,lists.get(i));	
-    			}
-    			
-    			return res;
+    			return this.diskIndex().search(query,queryType,rankingType,structureType,K);
     		}
     		else{
     		
-    			//Put the postingslist of the first term in res
-    			PostingsList res=index.get(terms.getFirst());
-    		
-    			// i starts at 1 since the first postingslist is already in res
-    			for(int i=1;i<nrQTerms;i++){
-    				String term=terms.get(i);
-    				res=this.intersect(res,index.get(term));
-    			}
-	
-    			return res;
+    			return this.intersectTerms(terms);
     		}
 	}
 	else if(queryType==Index.PHRASE_QUERY){
 		
 		if(SearchGUI.saveIndex){
-			ArrayList<PostingsList> lists=new ArrayList<PostingsList>();
-    			
-    			for(int i=0;i<nrQTerms;i++){
-    				String curTerm=terms.get(i);
-    				try{
-    					//If the filename is too large
-    					String fileName=curTerm;
-    					if(curTerm.length()>100){
-    						fileName=fileName.substring(0,100);
-    					}
-    					File file=new File(indexDir,fileName);
-    					if(file.exists()){
-    						ObjectInputStream oins=new ObjectInputStream(new FileInputStream(file));
-    						IndexEntry ent=(IndexEntry) oins.readObject();
-    						if(!ent.getTerm().equals(curTerm)){
-    							System.err.println("ERROR: The terms doesn't match");	
-    							//System.err.println("Ent.getTerm="+ent.getTerm());
-    							//System.err.println("CurTerm="+curTerm);
-    						}
-    						lists.add(ent.getList());
-    						oins.close();
-    					}
-    					else{
-    						//if atleast one term doesn't exist
-    						return null;	
-    					}
-    				}
-    				catch(Exception ex){
-    					ex.printStackTrace();	
-    				}	
-    			}
-    			
-    			if(lists.size()==0){
-    				return null;	
-    			}
-    			
-    			PostingsList res=lists.get(0);
-    			
-    			for(int i=1;i<nrQTerms;i++){
-    				res=this.phraseIntersect(res,lists.get(i),1);	
-    			}
-    			
-    			return res;
-			
+			return this.diskIndex().search(query,queryType,rankingType,structureType,K);
 		}
 		else{	
-			PostingsList res=index.get(terms.getFirst());
+			PostingsList res=this.getPostings(terms.getFirst());
 		
 			for(int i=1;i<nrQTerms;i++){
 				String term=terms.get(i);
-				res=this.phraseIntersect(res,index.get(term),1);
+				res=HashedIndex.phraseIntersect(res,this.getPostings(term),1);
+			}
+			if(nrQTerms==1){
+				res=HashedIndex.live(res);
 			}
 		
 		
@@ -288,17 +322,17 @@ public class HashedIndex implements Index {
 		if(rankingType==Index.TF_IDF){
 			if(structureType==Index.UNIGRAM){
 				long timeBefore=System.nanoTime();
-				PostingsList res=this.fastCosineScore(query,0);
+				PostingsList res=this.fastCosineScore(query,K);
 				long timeTaken=System.nanoTime()-timeBefore;
 				System.err.println("Time taken:"+timeTaken+"ns");
 				return res;
 			}
 			else if(structureType==Index.BIGRAM){
-				return biwordIndex.search(query, queryType,rankingType,structureType);
+				return biwordIndex.search(query, queryType,rankingType,structureType,K);
 			}
 			else if(structureType==Index.SUBPHRASE){
 						
-				PostingsList ret=this.subphraseQuery(query,queryType,rankingType,structureType);
+				PostingsList ret=this.subphraseQuery(query,queryType,rankingType,structureType,K);
 				
 				return ret;
 			}
@@ -308,11 +342,11 @@ public class HashedIndex implements Index {
 			}
 		}
 		else if(rankingType==Index.PAGERANK){
-			PostingsList res=this.pageRankQuery(query);
+			PostingsList res=this.pageRankQuery(query,K);
 			return res;
 		}
 		else if(rankingType==Index.COMBINATION){
-			PostingsList res=this.CombinationRank(query,0);
+			PostingsList res=this.CombinationRank(query,K);
 			return res;
 		}
 		else{
@@ -327,54 +361,154 @@ public class HashedIndex implements Index {
     }
     
     /**
-    	Function to intersect two postingslists. 
+    	Function to intersect a number of postingslists. The lists are intersected
+    	shortest first, so the intermediate result stays small and the longer
+    	lists are mostly skipped over.
     */
-    private PostingsList intersect(PostingsList p1, PostingsList p2){
+    static PostingsList intersectAll(ArrayList<PostingsList> lists){
+    	   
+    	   for(PostingsList list:lists){
+    	   	   //If atleast one term doesn't exist
+    	   	   if(list==null){
+    	   	   	   return null;
+    	   	   }
+    	   }
+    	   Collections.sort(lists,new Comparator<PostingsList>(){
+    	   	   public int compare(PostingsList a, PostingsList b){
+    	   	   	   return Integer.compare(a.size(),b.size());
+    	   	   }
+    	   });
+    	   
+    	   if(lists.size()==1){
+    	   	   return HashedIndex.live(lists.get(0));
+    	   }
+    	   PostingsList res=lists.get(0);
+    	   for(int i=1;i<lists.size();i++){
+    	   	   res=intersect(res,lists.get(i));
+    	   }
+    	   return res;
+    }
+    
+    /**
+    	Returns list without the postings of deleted documents, or list
+    	itself if no document is deleted.
+    */
+    static PostingsList live(PostingsList list){
+    	   if(list==null || documents.nrOfDeleted()==0){
+    	   	   return list;
+    	   }
+    	   PostingsList res=new PostingsList();
+    	   PostingsCursor cur=list.cursor();
+    	   while(cur.next()){
+    	   	   if(!documents.isDeleted(cur.docID())){
+    	   	   	   res.addEntry(list,cur.index());
+    	   	   }
+    	   }
+    	   return res;
+    }
+    
+    /**
+    	Function to intersect the postingslists of the words in the index.
+    	If two or more of the lists are dense their DocIDSets are ANDed,
+    	mostly as bitmaps, and the other lists are intersected as usual and
+    	then probed against the result.
+    */
+    private PostingsList intersectTerms(LinkedList<String> terms){
+    	   
+    	   ArrayList<PostingsList> lists=new ArrayList<PostingsList>();
+    	   ArrayList<Integer> denseTermIDs=new ArrayList<Integer>();
+    	   for(String term:terms){
+    	   	   int termID=dictionary.lookup(term);
+    	   	   PostingsList list=termID<0 || termID>=index.length ? null : this.postings(termID);
+    	   	   if(list==null){
+    	   	   	   //If atleast one term doesn't exist
+    	   	   	   return null;
+    	   	   }
+    	   	   if(this.isDense(list)){
+    	   	   	   denseTermIDs.add(termID);
+    	   	   }
+    	   	   else{
+    	   	   	   lists.add(list);
+    	   	   }
+    	   }
+    	   if(denseTermIDs.size()<2){
+    	   	   for(int termID:denseTermIDs){
+    	   	   	   lists.add(index[termID]);
+    	   	   }
+    	   	   return HashedIndex.intersectAll(lists);
+    	   }
+    	   
+    	   DocIDSet dense=this.getDocIDSet(denseTermIDs.get(0));
+    	   for(int i=1;i<denseTermIDs.size();i++){
+    	   	   dense=dense.and(this.getDocIDSet(denseTermIDs.get(i)));
+    	   }
+    	   
+    	   PostingsList res=new PostingsList();
+    	   if(lists.isEmpty()){
+    	   	   for(int docID:dense.toArray()){
+    	   	   	   if(!this.documents.isDeleted(docID)){
+    	   	   	   	   res.addEntry(docID,0.0);
+    	   	   	   }
+    	   	   }
+    	   	   return res;
+    	   }
+    	   PostingsList sparse=HashedIndex.intersectAll(lists);
+    	   if(sparse==null){
+    	   	   return null;
+    	   }
+    	   for(int i=0;i<sparse.size();i++){
+    	   	   if(dense.contains(sparse.docID(i))){
+    	   	   	   res.addEntry(sparse.docID(i),0.0);
+    	   	   }
+    	   }
+    	   return res;
+    }
+    
+    /** True if list holds more than 1/DENSE_FRACTION of the documents */
+    private boolean isDense(PostingsList list){
+    	    return (long)list.size()*DENSE_FRACTION>this.documents.size();
+    }
+    
+    /**
+    	Function to intersect two postingslists. The cursors leapfrog each
+    	other with advance(), so the cost is driven by the shorter list.
+    	Deleted documents are left out.
+    */
+    static PostingsList intersect(PostingsList p1, PostingsList p2){
     	   
     	   //If either postingslist is null or empty return null
     	   if(p1==null || p2==null || p1.size()==0 || p2.size()==0){
     	   	return null;	   
     	   }
     	   
-    	   //One iterator for each postingslist
-    	   Iterator<PostingsEntry> it1=p1.iterator();
-    	   Iterator<PostingsEntry> it2=p2.iterator();
-    	  
-    	   //Get the first position in each postingslist
-    	   PostingsEntry curP1=it1.next();
-    	   PostingsEntry curP2=it2.next();
+    	   //One cursor for each postingslist, the postings are decoded
+    	   //as we go
+    	   PostingsCursor cur1=p1.cursor();
+    	   PostingsCursor cur2=p2.cursor();
+    	   cur1.next();
+    	   cur2.next();
     	   
     	   PostingsList res=new PostingsList();
     	   
-    	   //This while returns if either it1 or it2 has no more entries
+    	   //This while returns if either cur1 or cur2 has no more entries
     	   while(true){
-    	   	   if(curP1.equals(curP2)){
-    	   	   	   PostingsEntry ent=new PostingsEntry(curP1.docID);
-    	   	   	   ent.setDocName(curP1.docName);
-    	   	   	   //System.err.println("Match. DocID:"+curP1.docID);
-    	   	   	   res.addEntry(ent);
-    	   	   	   //If there is more entries left
-    	   	   	   if(it1.hasNext() && it2.hasNext()){
-    	   	   	   	   curP1=it1.next();
-    	   	   	   	   curP2=it2.next();
+    	   	   if(cur1.docID()==cur2.docID()){
+    	   	   	   //System.err.println("Match. DocID:"+cur1.docID());
+    	   	   	   if(!documents.isDeleted(cur1.docID())){
+    	   	   	   	   res.addEntry(cur1.docID(),0.0);
     	   	   	   }
-    	   	   	   else{
+    	   	   	   if(!cur1.next() || !cur2.next()){
     	   	   	   	return res;	   
     	   	   	   }
     	   	   }
-    	   	   else if(curP1.docID<curP2.docID){
-    	   	   	if(it1.hasNext()){
-    	   	   		curP1=it1.next();
-    	   	   	}
-    	   	   	else{
+    	   	   else if(cur1.docID()<cur2.docID()){
+    	   	   	//Skip ahead in p1, this is cheap even if p1 is much longer
+    	   	   	if(!cur1.advance(cur2.docID())){
     	   	   		return res;
     	   	   	}
     	   	   }
     	   	   else{
-    	   	   	if(it2.hasNext()){
-    	   	   		curP2=it2.next();	
-    	   	   	}
-    	   	   	else{
+    	   	   	if(!cur2.advance(cur1.docID())){
     	   	   		return res;
     	   	   	}
     	   	   }
@@ -389,87 +523,84 @@ public class HashedIndex implements Index {
     @param p2 The second PostingsList
     @param diff The difference in offset of the words between p1 and p2 (=1 in most cases)
     @return A PostingsList with entries for every matching entries in p1 and p2 where
-    	the entry in p2 should be +diff in offset from the entry in p1
+    	the entry in p2 should be +diff in offset from the entry in p1, deleted
+    	documents are left out
     */
-    private PostingsList phraseIntersect(PostingsList p1, PostingsList p2, int diff){
+    static PostingsList phraseIntersect(PostingsList p1, PostingsList p2, int diff){
     	   
     	   //If either postingslist is null or empty return null
     	   if(p1==null || p2==null || p1.size()==0 || p2.size()==0){
     	   	return null;	   
     	   }
     	   
-    	   //One iterator for each postingslist
-    	   Iterator<PostingsEntry> it1=p1.iterator();
-    	   Iterator<PostingsEntry> it2=p2.iterator();
-    	  
-    	   //Get the first position in each postingslist
-    	   PostingsEntry curP1=it1.next();
-    	   PostingsEntry curP2=it2.next();
+    	   //One cursor for each postingslist, the offsets are only
+    	   //decoded for the docIDs that are in both lists
+    	   PostingsCursor cur1=p1.cursor();
+    	   PostingsCursor cur2=p2.cursor();
+    	   cur1.next();
+    	   cur2.next();
     	   
     	   PostingsList res=new PostingsList();
     	   
-    	   //This while returns if either it1 or it2 has no more entries
+    	   //This while returns if either cur1 or cur2 has no more entries
     	   while(true){
-    	   	   if(curP1.equals(curP2)){
-    	   	   	   //If the docID is the same we retrieve the offsets
-    	   	   	   Iterator<Integer> offsetsP1=curP1.getOffsets().iterator();
-    	   	   	   Iterator<Integer> offsetsP2=null;
+    	   	   if(cur1.docID()==cur2.docID() && documents.isDeleted(cur1.docID())){
+    	   	   	   //A deleted document never matches
+    	   	   	   if(!cur1.next() || !cur2.next()){
+    	   	   	   	return res;	   
+    	   	   	   }
+    	   	   }
+    	   	   else if(cur1.docID()==cur2.docID()){
+    	   	   	   //If the docID is the same we go through the offsets
+    	   	   	   int tf1=cur1.termFrequency();
+    	   	   	   int tf2=cur2.termFrequency();
+    	   	   	   int[] offsets1=cur1.offsets();
+    	   	   	   int[] offsets2=cur2.offsets();
+    	   	   	   int start1=cur1.offsetsStart();
+    	   	   	   int start2=cur2.offsetsStart();
     	   	   	   
-    	   	   	   //The offsets are ordered in increasing order
-    	   	   	   int curOffsetP1;
-    	   	   	   int curOffsetP2;
-    	   	   	   PostingsEntry match=null;
-    	   	   	   while(offsetsP1.hasNext()){
-    	   	   	   	   curOffsetP1=offsetsP1.next();
-    	   	   	   	   //We need to "reset" p2 every time
-    	   	   	   	   offsetsP2=curP2.getOffsets().iterator();
-    	   	   	   	   //For every offset in p1 check for a match in p2
-    	   	   	   	   while(offsetsP2.hasNext()){
-    	   	   	   	   	   curOffsetP2=offsetsP2.next();
-    	   	   	   	   	   //If the current offset in p2 is more
-    	   	   	   	   	   //than diff higher than the current
-    	   	   	   	   	   //offset in p1 we can break the inner loop
-    	   	   	   	   	   if(curOffsetP1+diff<curOffsetP2){
-    	   	   	   	   	   	break;	   
+    	   	   	   //The offsets are ordered in increasing order, so both
+    	   	   	   //lists can be walked once
+    	   	   	   int j1=0;
+    	   	   	   int j2=0;
+    	   	   	   boolean match=false;
+    	   	   	   while(j1<tf1 && j2<tf2){
+    	   	   	   	   int wanted=offsets1[start1+j1]+diff;
+    	   	   	   	   int curOffsetP2=offsets2[start2+j2];
+    	   	   	   	   if(curOffsetP2<wanted){
+    	   	   	   	   	   j2++;
+    	   	   	   	   }
+    	   	   	   	   else if(curOffsetP2>wanted){
+    	   	   	   	   	   j1++;
+    	   	   	   	   }
+    	   	   	   	   else{
+    	   	   	   	   	   //System.err.println("Match. DocID:"+cur1.docID()+" offset:"+curOffsetP2);
+    	   	   	   	   	   //Match
+    	   	   	   	   	   if(!match){
+    	   	   	   	   	   	   res.addPosting(cur1.docID(),curOffsetP2);
+    	   	   	   	   	   	   match=true;
     	   	   	   	   	   }
-    	   	   	   	   	    if(curOffsetP1+diff==curOffsetP2){
-    	   	   	   	   	   	//System.err.println("Match. DocID:"+curP1.docID+" offset:"+curOffsetP2);
-    	   	   	   	   	   	//Match
-    	   	   	   	   	   	if(match==null){
-    	   	   	   	   	   		match=new PostingsEntry(curP1.docID);
-    	   	   	   	   	   		match.setDocName(curP1.docName);
-    	   	   	   	   	   	}
-    	   	   	   	   	   	match.addOffset(curOffsetP2);
+    	   	   	   	   	   else{
+    	   	   	   	   	   	   res.addOffsetToLastEntry(curOffsetP2);
     	   	   	   	   	   }
-    	   	   	   	   	   
-    	   	   	   	   }   
+    	   	   	   	   	   j1++;
+    	   	   	   	   	   j2++;
+    	   	   	   	   }
     	   	   	   }
-    	   	   	   if(match!=null){
-    	   	   	   	res.addEntry(match);	   
-    	   	   	   }   
     	   	   	   
     	   	   	   //If there is more entries left
-    	   	   	   if(it1.hasNext() && it2.hasNext()){
-    	   	   	   	   curP1=it1.next();
-    	   	   	   	   curP2=it2.next();
-    	   	   	   }
-    	   	   	   else{
+    	   	   	   if(!cur1.next() || !cur2.next()){
     	   	   	   	return res;	   
     	   	   	   }
     	   	   }
-    	   	   else if(curP1.docID<curP2.docID){
-    	   	   	if(it1.hasNext()){
-    	   	   		curP1=it1.next();
-    	   	   	}
-    	   	   	else{
+    	   	   else if(cur1.docID()<cur2.docID()){
+    	   	   	//Skip ahead in p1, this is cheap even if p1 is much longer
+    	   	   	if(!cur1.advance(cur2.docID())){
     	   	   		return res;
     	   	   	}
     	   	   }
     	   	   else{
-    	   	   	if(it2.hasNext()){
-    	   	   		curP2=it2.next();	
-    	   	   	}
-    	   	   	else{
+    	   	   	if(!cur2.advance(cur1.docID())){
     	   	   		return res;
     	   	   	}
     	   	   }
@@ -478,216 +609,113 @@ public class HashedIndex implements Index {
     }
     
     /**
-    	Function to write the current Index to files
+    	Function to write the current Index to files, as a new segment
     */
     private void writeCurrentIndexToFiles(){
     	    
-    	    Iterator<String> keySet=index.keySet().iterator();
     	    try{
     	    	    File indexDir=new File(filePrefix);
     	    	    if(!indexDir.exists()){
     	    	    	indexDir.mkdir();	    
     	    	    }
     	    	    
-    	    	    while(keySet.hasNext()){
-    	    
-    	    	    	    String curKey=keySet.next();
-    	    	    	    PostingsList curList=index.get(curKey);
-    	    	    	    PostingsList toWrite=null;
-    	    	     
-    	    	    	    //Create a file object
-    	    	    	    //If the filename is too large
-    	    	    	    String fileName=curKey;
-    	    	    	    if(curKey.length()>100){
-    	    	    	    	fileName=fileName.substring(0,100);
-    	    	    	    }
-    	    	    	    File curF=new File(indexDir,fileName);
-    	    	    	    //Check if the file exists (in that case read the object in it)
-    	    	    	    if(curF.exists()){
-    	    	    	    	ObjectInputStream oins=new ObjectInputStream(new FileInputStream(curF));
-    	    	    	   	 IndexEntry prevEntry=(IndexEntry) oins.readObject();
-    	    	    	   	 oins.close();
-    	    	    	    
-    	    	    	   	 if(!prevEntry.getTerm().equals(curKey)){
-    	    	    	    	    System.err.println("ERROR: The Keys does not match!");    
-    	    	    		    }
-    	    	    	    
-    	    	    		    toWrite=HashedIndex.mergeLists(prevEntry.getList(),curList);
-    	    	    	    
-    	    	    	    }
-    	    	    	    else{
-    	    	    	    	    toWrite=curList;	    
-    	    	    	    }
-    	    	    
-    	    	    	    IndexEntry writeToFile=new IndexEntry(curKey,toWrite);
-    	    	    
-    	    	    	    ObjectOutputStream oos=new ObjectOutputStream(new FileOutputStream(curF));
-    	    	    	    oos.writeObject(writeToFile);
-    	    	    	    oos.flush();
-    	    	    	    oos.close();
-
-    	    	    }
-    	    	    
-    	    	    //Also has to save the docNames and the docLengths
-    	    	    File infoDir=new File(indexDir,indexInfoDirectory);
-    	    	    if(!infoDir.exists()){
-    	    	    	infoDir.mkdir();    
-    	    	    }
-    	    	    File docNames=new File(infoDir,docNamesFile);
-    	    	    
-    	    	    PrintWriter namesOut= new PrintWriter(new BufferedWriter(new FileWriter(docNames,true)));
-    	    	    
-    	    	    Iterator<String> allDocIDs=this.docIDs.keySet().iterator();
-    	    	    
-    	    	    while(allDocIDs.hasNext()){
-    	    	    
-    	    	    	    String curDocID=allDocIDs.next();
-    	    	    	    
-    	    	    	    String writeString=curDocID+ " " + docIDs.get(curDocID);
-    	    	    	    
-    	    	    	    namesOut.println(writeString);
-    	    	    	    
-    	    	    }
-    	    	    namesOut.close();
-    	    	    
-    	    	    File lenFile=new File(infoDir,docLengthFile);
-    	    	    
-    	    	    PrintWriter lenOut=new PrintWriter(new BufferedWriter(new FileWriter(lenFile,true)));
-    	    	    
-    	    	    Iterator<String> lenIt=this.docLengths.keySet().iterator();
-    	    	    
-    	    	    while(lenIt.hasNext()){
-    	    	    
-    	    	    	    String curDocID=lenIt.next();
-    	    	    	    
-    	    	    	    String writeString=curDocID + " " + docLengths.get(curDocID);
-    	    	    	    
-    	    	    	    lenOut.println(writeString);
-    	    	    	    
-    	    	    }
-    	    	    lenOut.close();
-    	    	    
+    	    	    //Opened before the write, so it does not open the new segment itself
+    	    	    DiskIndex diskIndex=this.diskIndex();
+    	    	    long timeBefore=System.nanoTime();
+    	    	    String name=Segment.write(indexDir,dictionary,index,this.documents);
+    	    	    System.err.println("Wrote "+name+" in "+(System.nanoTime()-timeBefore)/1000000+"ms");
     	    	    
+    	    	    //Make the segment searchable and let the tiers be merged
+    	    	    diskIndex.add(name);
+    	    	    mergeScheduler.maybeMerge();
     	    
-    } catch(Exception e){
+    } catch(IOException e){
     	    	   System.err.println("Error writing index to file");
     	    	   e.printStackTrace();
     	    	    }
     	    	    
     }
     
+    /** index[termID], read from the snapshot the first time if there is one */
+    private PostingsList postings(int termID){
+    	    PostingsList list=index[termID];
+    	    if(list==null && snapshotPostings!=null){
+    	    	    list=snapshotPostings.get(termID);
+    	    	    index[termID]=list;
+    	    }
+    	    return list;
+    }
+    
+    /** The index on disk, to search the segments that have been written */
+    private synchronized DiskIndex diskIndex(){
+    	    if(diskIndex==null){
+    	    	    diskIndex=new DiskIndex(new File(filePrefix));
+    	    	    mergeScheduler=new MergeScheduler(diskIndex);
+    	    }
+    	    return diskIndex;
+    }
+    
     /**
     	Function to merge two postingslists (docID should be sorted)
     */
     public static PostingsList mergeLists(PostingsList p1, PostingsList p2){
 
+    	    if(p1.size()==0){
+    	    	return p2;	    
+    	    }
+    	    else if(p2.size()==0){
+    	    	return p1;	    
+    	    }
+    	    
     	    PostingsList res=new PostingsList();
+    	    int size1=p1.size();
+    	    int size2=p2.size();
     	    
     	    //If the first entry in p2 has a bigger docID than the last in p1 we can just
     	    //add all elements in p2 to the end of p1
-    	    if(p2.get(0).getDocID()>p1.get(p1.size()-1).getDocID()){
-    	    	    Iterator<PostingsEntry> it=p2.iterator();
+    	    if(p2.docID(0)>p1.docID(size1-1)){
     	    	    res=p1;
-    	    	    while(it.hasNext()){
-    	    	    	PostingsEntry curEntry=it.next();
-    	    	    	res.addEntry(curEntry);
+    	    	    for(int i=0;i<size2;i++){
+    	    	    	res.addEntry(p2,i);
     	    	    }
     	    }
-    	    else if(p1.get(0).getDocID()>p2.get(p2.size()-1).getDocID()){
-    	    	Iterator<PostingsEntry> it=p1.iterator();
+    	    else if(p1.docID(0)>p2.docID(size2-1)){
     	    	res=p2;
-    	    	while(it.hasNext()){
-    	    	    	PostingsEntry curEntry=it.next();
-    	    	    	res.addEntry(curEntry);
-    	    	    }    
+    	    	for(int i=0;i<size1;i++){
+    	    	    	res.addEntry(p1,i);
+    	    	}    
     	    }
     	    else{
     	    	
-    	    	    if(p1.size()==0){
-    	    	    	return p2;	    
-    	    	    }
-    	    	    else if(p2.size()==0){
-    	    	    	return p1;	    
-    	    	    }
+    	    	int i1=0;
+    	    	int i2=0;
     	    	
-    	    	    
-    	    	Iterator<PostingsEntry> it1=p1.iterator();
-    	    	Iterator<PostingsEntry> it2=p2.iterator();
-    	    	
-    	    	PostingsEntry curP1=it1.next();
-    	    	PostingsEntry curP2=it2.next();
-    	    	
-    	    	while(curP1!=null || curP2!=null){
-    	    		//If iterator1 is empty
-    	    		if(curP1==null){
-    	    			res.addEntry(curP2);
-    	    			if(it2.hasNext()){
-    	    				curP2=it2.next();	
-    	    			}
-    	    			else{
-    	    				//Then both lists are empty and we break
-    	    				break;
-    	    			}
+    	    	while(i1<size1 || i2<size2){
+    	    		//If p1 is empty
+    	    		if(i1==size1){
+    	    			res.addEntry(p2,i2++);
     	    		}
-    	    		//If iterator 2 is empty
-    	    		if(curP2==null){
-    	    			res.addEntry(curP1);
-    	    			if(it1.hasNext()){
-    	    				curP1=it1.next();	
+    	    		//If p2 is empty
+    	    		else if(i2==size2){
+    	    			res.addEntry(p1,i1++);
+    	    		}
+    	    		else if(p1.docID(i1)==p2.docID(i2)){
+    	    			//Add the entry with the highest score
+    	    			if(p1.score(i1)>=p2.score(i2)){
+    	    				res.addEntry(p1,i1);
     	    			}
     	    			else{
-    	    				//Then we can break the loop
-    	    				break;
+    	    				res.addEntry(p2,i2);
     	    			}
+    	    			i1++;
+    	    			i2++;
+    	    		}
+    	    		else if(p1.docID(i1)<p2.docID(i2)){
+    	    			res.addEntry(p1,i1++);
     	    		}
     	    		else{
-    	    			if(curP1==null || curP2==null){
-    	    				continue;	
-    	    			}
-    	    			if(curP1.getDocID()==curP2.getDocID()){
-    	    				PostingsEntry useEntry=null;
-    	    				if(curP1.score>=curP2.score){
-    	    					useEntry=curP1;	
-    	    				}
-    	    				else{
-    	    					useEntry=curP2;	
-    	    				}
-    	    				//Add the entry
-    	    				res.addEntry(useEntry);
-    	    				//Update current postingsEntries
-    	    				if(it1.hasNext()){
-    	    					curP1=it1.next();	
-    	    				}
-    	    				else{
-    	    					curP1=null;	
-    	    				}
-    	    				if(it2.hasNext()){
-    	    					curP2=it2.next();	
-    	    				}
-    	    				else{
-    	    					curP2=null;	
-    	    				}
-    	    			}
-    	    			else if(curP1.getDocID()<curP2.getDocID()){
-    	    				res.addEntry(curP1);
-    	    				if(it1.hasNext()){
-    	    					curP1=it1.next();	
-    	    				}
-    	    				else{
-    	    					curP1=null;	
-    	    				}
-    	    				
-    	    			}
-    	    			else{
-    	    				res.addEntry(curP2);
-    	    				if(it2.hasNext()){
-    	    					curP2=it2.next();	
-    	    				}
-    	    				else{
-    	    					curP2=null;
-    	    				}
-    	    			}
-    	    		}  		
+    	    			res.addEntry(p2,i2++);
+    	    		}
     	    	}
     	    
 	    }
@@ -698,15 +726,19 @@ public class HashedIndex implements Index {
     
     /**
     	Function to calculate the cosine score and return the top
-    	K results
+    	K results (all results if K==0)
     */
     private PostingsList fastCosineScore(Query q, int K){
     	    
-    	    HashMap<String,Double> scores=new HashMap<String,Double>();
+    	    if(K>0){
+    	    	    return this.maxScoreTopK(q,K);
+    	    }
+    	    
+    	    ScoreAccumulator scores=ScoreAccumulator.forThread(this.documents.capacity());
     	    LinkedList<String> terms=q.terms;
     	    LinkedList<Double> termWeights=q.weights;
     	    
-    	    int nrDocsInCorpus=this.docIDs.keySet().size();
+    	    int nrDocsInCorpus=this.documents.sizeWithDeleted();
     	    
     	    //First add up all scores
     	    for(int i=0;i<terms.size();i++){
@@ -714,12 +746,16 @@ public class HashedIndex implements Index {
     	    	String term=terms.get(i);
     	    	double termWeight=termWeights.get(i);
     	    	    
-    	    	PostingsList curList=index.get(term);
+    	    	PostingsList curList=this.getPostings(term);
+    	    	//A term that is not in the index adds nothing, as in maxScoreTopK
+    	    	if(curList==null || curList.size()==0){
+    	    		continue;
+    	    	}
     	    	int dft=curList.size();
     	    	double termIDF=Math.log((double)nrDocsInCorpus/(double)dft);
     	    	
-    	    	//Implementation of optimization
-    	    	if(OPTIMIZATION){
+    	    	//Lossy optimization, drops the common terms
+    	    	if(SearchGUI.idfCutoff){
     	    		//If the termIDF is less than the threshold skip this term
     	    		if(termIDF<IDF_THRESHOLD){
     	    			continue;	
@@ -735,55 +771,216 @@ public class HashedIndex implements Index {
     	    	//System.err.println("dft:"+dft);
     	    	//System.err.println("TermIDF:"+termIDF);
     	    	
-    	    	Iterator<PostingsEntry> it=curList.iterator();
-    	    	PostingsEntry curEnt=null;
+    	    	PostingsCursor cur=curList.cursor();
     	    	
-    	    	while(it.hasNext()){
+    	    	while(cur.next()){
     	    	
-    	    		curEnt=it.next();
-    	    		double tf=(double)curEnt.getOffsets().size();
-    	    		double tf_idf=tf*termIDF;
-    	    		Double curScore=scores.get(""+curEnt.getDocID());
-    	    		if(curScore==null){
-    	    			curScore=tf_idf;	
+    	    		int docID=cur.docID();
+    	    		if(this.documents.isDeleted(docID)){
+    	    			continue;
     	    		}
-    	    		else{
-    	    			curScore=curScore+tf_idf;	
-    	    		}
-    	    		scores.put(""+curEnt.getDocID(),curScore);
+    	    		double tf=(double)cur.termFrequency();
+    	    		double tf_idf=tf*termIDF;
+    	    		scores.add(docID,tf_idf);
     	    		
     	    	}
     	    	
     	    }
-    	    //Postingslist to save all entries
-    	    PostingsList finalList=new PostingsList();
+    	    //Heap that keeps the top K entries (all of them if K==0)
+    	    TopKHeap topK=new TopKHeap(K);
     	    //Now we divide all scores by their docLength
-    	    Iterator<String> keys=scores.keySet().iterator();
-    	    while(keys.hasNext()){
+    	    for(int i=0;i<scores.size();i++){
     	    
-    	    	    String curKey=keys.next();
-    	    	    Integer docLength=this.docLengths.get(curKey);
-    	    	    Double curScore=scores.get(curKey);
-    	    	    int docID=Integer.parseInt(curKey);
+    	    	    int docID=scores.docID(i);
+    	    	    int docLength=this.documents.length(docID);
+    	    	    double curScore=scores.score(i);
     	    	    double finalScore=curScore/(double)docLength;
-    	    	    PostingsEntry ent=new PostingsEntry(docID);
-    	    	    ent.setScore(finalScore);
-    	    	    finalList.addEntry(ent);
+    	    	    topK.add(docID,finalScore);
+    	    }
+    	    
+    	    //The heap has kept the top K entries
+    	    return topK.toPostingsList();
+    }
+    
+    /**
+    	Document-at-a-time version of fastCosineScore for K>0 that gives the
+    	same top K without scoring every document (block-max MaxScore).
+    	
+    	The terms are ordered on the most they can add to a score. Once the
+    	heap is full, the terms whose bounds together can not beat the K:th
+    	score are non-essential: a document only in those can not make the
+    	top K, so the candidates are only taken from the essential terms.
+    	For a candidate the non-essential terms are checked from the
+    	largest bound down, using the bound of the block the document
+    	would be in, and the candidate is dropped as soon as the bounds
+    	show it can not beat the K:th score.
+    */
+    private PostingsList maxScoreTopK(Query q, int K){
+    	    
+    	    LinkedList<String> terms=q.terms;
+    	    LinkedList<Double> termWeights=q.weights;
+    	    
+    	    int nrDocsInCorpus=this.documents.sizeWithDeleted();
+    	    int nrTerms=terms.size();
+    	    
+    	    //Per query term, null cursor if the term is not used
+    	    PostingsCursor[] cursors=new PostingsCursor[nrTerms];
+    	    TermBounds[] termBounds=new TermBounds[nrTerms];
+    	    double[] idfs=new double[nrTerms];
+    	    double[] maxScores=new double[nrTerms];
+    	    int[] blocks=new int[nrTerms];
+    	    int[] tfs=new int[nrTerms];
+    	    
+    	    //The used terms, ordered on increasing maxScore
+    	    Integer[] order=new Integer[nrTerms];
+    	    int n=0;
+    	    for(int i=0;i<nrTerms;i++){
+    	    	int termID=dictionary.lookup(terms.get(i));
+    	    	PostingsList curList=termID<0 ? null : this.postings(termID);
+    	    	if(curList==null || curList.size()==0){
+    	    		continue;
+    	    	}
+    	    	double termIDF=Math.log((double)nrDocsInCorpus/(double)curList.size());
+    	    	if(SearchGUI.idfCutoff && termIDF<IDF_THRESHOLD){
+    	    		continue;
+    	    	}
+    	    	idfs[i]=termIDF*termWeights.get(i);
+    	    	termBounds[i]=this.getBounds(termID);
+    	    	maxScores[i]=idfs[i]*termBounds[i].maxWeight();
+    	    	cursors[i]=curList.cursor();
+    	    	cursors[i].next();
+    	    	order[n++]=i;
     	    }
+    	    final double[] termMaxScores=maxScores;
+    	    Arrays.sort(order,0,n,new Comparator<Integer>(){
+    	    	    public int compare(Integer a, Integer b){
+    	    	    	    return Double.compare(termMaxScores[a],termMaxScores[b]);
+    	    	    }
+    	    });
+    	    //prefixMax[j] is the most the terms order[0..j] can add together
+    	    double[] prefixMax=new double[n];
+    	    for(int j=0;j<n;j++){
+    	    	prefixMax[j]=(j>0 ? prefixMax[j-1] : 0)+maxScores[order[j]]*(1+BOUND_SLACK);
+    	    }
+    	    
+    	    TopKHeap topK=new TopKHeap(K);
+    	    double threshold=topK.threshold();
+    	    //order[0..firstEssential) are the non-essential terms
+    	    int firstEssential=0;
     	    
-    	    //When all entries are added we sort the finalList and pick out
-    	    //the top K entries
-    	    finalList.sortPostingsList();
-    	    if(finalList.size()<K || K==0){
-    	    	return finalList;	    
+    	    while(firstEssential<n){
+    	    	
+    	    	//The next candidate is the smallest docID of the essential terms
+    	    	int docID=Integer.MAX_VALUE;
+    	    	for(int j=firstEssential;j<n;j++){
+    	    		PostingsCursor cur=cursors[order[j]];
+    	    		if(!cur.atEnd() && cur.docID()<docID){
+    	    			docID=cur.docID();
+    	    		}
+    	    	}
+    	    	if(docID==Integer.MAX_VALUE){
+    	    		break;
+    	    	}
+    	    	if(this.documents.isDeleted(docID)){
+    	    		//Not scored, but the essential cursors move past it
+    	    		for(int j=firstEssential;j<n;j++){
+    	    			PostingsCursor cur=cursors[order[j]];
+    	    			if(!cur.atEnd() && cur.docID()==docID){
+    	    				cur.next();
+    	    			}
+    	    		}
+    	    		continue;
+    	    	}
+    	    	double docLength=(double)this.documents.length(docID);
+    	    	
+    	    	//Score the essential terms, and move their cursors on
+    	    	double score=0;
+    	    	for(int j=firstEssential;j<n;j++){
+    	    		int i=order[j];
+    	    		PostingsCursor cur=cursors[i];
+    	    		tfs[i]=0;
+    	    		if(!cur.atEnd() && cur.docID()==docID){
+    	    			tfs[i]=cur.termFrequency();
+    	    			score+=tfs[i]*idfs[i]/docLength;
+    	    			cur.next();
+    	    		}
+    	    	}
+    	    	
+    	    	//Then the non-essential terms, while the candidate can still make it
+    	    	boolean pruned=false;
+    	    	if(firstEssential>0){
+    	    		double rest=0;
+    	    		for(int j=0;j<firstEssential;j++){
+    	    			int i=order[j];
+    	    			tfs[i]=0;
+    	    			blocks[i]=termBounds[i].block(docID,blocks[i]);
+    	    			rest+=idfs[i]*termBounds[i].blockMaxWeight(blocks[i])*(1+BOUND_SLACK);
+    	    		}
+    	    		for(int j=firstEssential-1;j>=0;j--){
+    	    			if(score+rest<=threshold){
+    	    				pruned=true;
+    	    				break;
+    	    			}
+    	    			int i=order[j];
+    	    			rest-=idfs[i]*termBounds[i].blockMaxWeight(blocks[i])*(1+BOUND_SLACK);
+    	    			PostingsCursor cur=cursors[i];
+    	    			if(cur.advance(docID) && cur.docID()==docID){
+    	    				tfs[i]=cur.termFrequency();
+    	    				score+=tfs[i]*idfs[i]/docLength;
+    	    			}
+    	    		}
+    	    	}
+    	    	if(pruned){
+    	    		topK.countMatch();
+    	    		continue;
+    	    	}
+    	    	
+    	    	//Add up the exact score in query order, like fastCosineScore
+    	    	double finalScore=0;
+    	    	for(int i=0;i<nrTerms;i++){
+    	    		if(cursors[i]!=null && tfs[i]>0){
+    	    			finalScore+=tfs[i]*idfs[i];
+    	    		}
+    	    	}
+    	    	finalScore=finalScore/docLength;
+    	    	topK.add(docID,finalScore);
+    	    	
+    	    	//A higher threshold can make more terms non-essential
+    	    	threshold=topK.threshold();
+    	    	while(firstEssential<n && prefixMax[firstEssential]<=threshold){
+    	    		firstEssential++;
+    	    	}
     	    }
-    	    PostingsList retList=new PostingsList();
-    	    for(int i=0;i<K;i++){
-    	    	retList.addEntry(finalList.get(i));	    
+    	    
+    	    return topK.toPostingsList();
+    }
+    
+    /**
+    	Returns the score bounds of the word with the given id. They are
+    	computed the first time and again if the list has grown since.
+    */
+    private TermBounds getBounds(int termID){
+    	    TermBounds b=bounds[termID];
+    	    if(b==null || b.size!=this.postings(termID).size()){
+    	    	    b=new TermBounds(this.postings(termID),this.documents);
+    	    	    bounds[termID]=b;
     	    }
-    	    return retList;
+    	    return b;
     }
     
+    /**
+    	Returns the docIDs of the word with the given id as a DocIDSet,
+    	built the first time and again if the list has grown since.
+    */
+    private DocIDSet getDocIDSet(int termID){
+    	    DocIDSet set=docIDSets[termID];
+    	    if(set==null || set.cardinality()!=this.postings(termID).size()){
+    	    	    set=DocIDSet.of(this.postings(termID));
+    	    	    docIDSets[termID]=set;
+    	    }
+    	    return set;
+    }
+
 
     private HashMap<Integer,Double> readPageRankFromFile(){
     
@@ -847,19 +1044,19 @@ public class HashedIndex implements Index {
     
     /**
     	Function to calculate the cosine score, combine it with PageRank
-    	and return the top K results
+    	and return the top K results (all results if K==0)
     */
     private PostingsList CombinationRank(Query q, int K){
     	    
-    	    HashMap<String,Double> scores=new HashMap<String,Double>();
+    	    ScoreAccumulator scores=ScoreAccumulator.forThread(this.documents.capacity());
     	    LinkedList<String> terms=q.terms;
     	    
-    	    int nrDocsInCorpus=this.docIDs.keySet().size();
+    	    int nrDocsInCorpus=this.documents.sizeWithDeleted();
     	    
     	    //First add up all scores
     	    for(String term:terms){
     	    	
-    	    	PostingsList curList=index.get(term);
+    	    	PostingsList curList=this.getPostings(term);
     	    	if(curList==null){
     	    		System.err.println("Error: PosingsList is empty. Term:"+term);	
     	    	}
@@ -870,99 +1067,75 @@ public class HashedIndex implements Index {
     	    	//System.err.println("dft:"+dft);
     	    	//System.err.println("TermIDF:"+termIDF);
     	    	
-    	    	Iterator<PostingsEntry> it=curList.iterator();
-    	    	PostingsEntry curEnt=null;
+    	    	PostingsCursor cur=curList.cursor();
     	    	
-    	    	while(it.hasNext()){
+    	    	while(cur.next()){
     	    	
-    	    		curEnt=it.next();
-    	    		double tf=(double)curEnt.getOffsets().size();
-    	    		double tf_idf=tf*termIDF;
-    	    		Double curScore=scores.get(""+curEnt.getDocID());
-    	    		if(curScore==null){
-    	    			curScore=tf_idf;	
-    	    		}
-    	    		else{
-    	    			curScore=curScore+tf_idf;	
+    	    		int docID=cur.docID();
+    	    		if(this.documents.isDeleted(docID)){
+    	    			continue;
     	    		}
-    	    		scores.put(""+curEnt.getDocID(),curScore);
+    	    		double tf=(double)cur.termFrequency();
+    	    		double tf_idf=tf*termIDF;
+    	    		scores.add(docID,tf_idf);
     	    		
     	    	}
     	    	
     	    }
-    	    //Postingslist to save all entries
-    	    PostingsList finalList=new PostingsList();
+    	    //Heap that keeps the top K entries (all of them if K==0)
+    	    TopKHeap topK=new TopKHeap(K);
     	    //Now we divide all scores by their docLength
-    	    Iterator<String> keys=scores.keySet().iterator();
-    	    while(keys.hasNext()){
+    	    for(int i=0;i<scores.size();i++){
     	    
-    	    	    String curKey=keys.next();
-    	    	    Integer docLength=this.docLengths.get(curKey);
-    	    	    Double curScore=scores.get(curKey);
-    	    	    int docID=Integer.parseInt(curKey);
+    	    	    int docID=scores.docID(i);
+    	    	    int docLength=this.documents.length(docID);
+    	    	    double curScore=scores.score(i);
     	    	    double finalScore=curScore/(double)docLength;
     	    	    finalScore=pageRankTFIDFCombination(docID,finalScore);
-    	    	    PostingsEntry ent=new PostingsEntry(docID);
-    	    	    ent.setScore(finalScore);
-    	    	    finalList.addEntry(ent);
+    	    	    topK.add(docID,finalScore);
     	    }
     	    
-    	    //When all entries are added we sort the finalList and pick out
-    	    //the top K entries
-    	    finalList.sortPostingsList();
-    	    if(finalList.size()<K || K==0){
-    	    	return finalList;	    
-    	    }
-    	    PostingsList retList=new PostingsList();
-    	    for(int i=0;i<K;i++){
-    	    	retList.addEntry(finalList.get(i));	    
-    	    }
-    	    return retList;
+    	    //The heap has kept the top K entries
+    	    return topK.toPostingsList();
     }
     
-    private PostingsList pageRankQuery(Query query){
+    private PostingsList pageRankQuery(Query query, int K){
     	    
-    	    HashMap<String,Double> scores=new HashMap<String,Double>();
+    	    ScoreAccumulator scores=ScoreAccumulator.forThread(this.documents.capacity());
     	    LinkedList<String> terms=query.terms;
     	    
     	    //First add up all scores
     	    for(String term:terms){
     	    	
-    	    	PostingsList curList=index.get(term);
+    	    	PostingsList curList=this.getPostings(term);
     	    	if(curList==null){
     	    		System.err.println("Error: PosingsList is empty. Term:"+term);	
     	    	}
     	    	
-    	    	Iterator<PostingsEntry> it=curList.iterator();
-    	    	PostingsEntry curEnt=null;
+    	    	PostingsCursor cur=curList.cursor();
     	    	
-    	    	while(it.hasNext()){
-    	    		curEnt=it.next();
-    	    		double curPageRank=this.getPageRank(curEnt.getDocID());
-    	    		scores.put(""+curEnt.getDocID(),curPageRank);	
+    	    	while(cur.next()){
+    	    		int docID=cur.docID();
+    	    		if(this.documents.isDeleted(docID)){
+    	    			continue;
+    	    		}
+    	    		double curPageRank=this.getPageRank(docID);
+    	    		scores.set(docID,curPageRank);	
     	    	}
     	    	
     	    }
-    	    //Postingslist to save all entries
-    	    PostingsList finalList=new PostingsList();
+    	    //Heap that keeps the top K entries (all of them if K==0)
+    	    TopKHeap topK=new TopKHeap(K);
     	    //Now we divide all scores by their docLength
-    	    Iterator<String> keys=scores.keySet().iterator();
-    	    while(keys.hasNext()){
+    	    for(int i=0;i<scores.size();i++){
     	    
-    	    	    String curKey=keys.next();
-    	    	    Integer docLength=this.docLengths.get(curKey);
-    	    	    Double curPageRank=scores.get(curKey);
-    	    	    int docID=Integer.parseInt(curKey);
-    	    	    PostingsEntry ent=new PostingsEntry(docID);
-    	    	    ent.setScore(curPageRank);
-    	    	    finalList.addEntry(ent);
+    	    	    int docID=scores.docID(i);
+    	    	    double curPageRank=scores.score(i);
+    	    	    topK.add(docID,curPageRank);
     	    }
     	    
-    	    //When all entries are added we sort the finalList and pick out
-    	    //the top K entries
-    	    finalList.sortPostingsList();
-    	    	
-    	    return finalList;	    
+    	    //The heap has kept the top K entries
+    	    return topK.toPostingsList();
     	    
     	    
     }
@@ -974,22 +1147,8 @@ public class HashedIndex implements Index {
     
     	    double pageRankInfluence=0.3;
 
-    	    //First we need to get the correct pageRankDocID
-    	    String docName=this.docIDs.get(""+docID);
-    	    //String[] splitUp=docName.split("/");
-    	    //String parsedDocName=splitUp[1].substring(0,splitUp[1].length()-2);
-    	    String parsedDocName=docName.substring(10,docName.length()-2);
-    	    //System.err.println("DocName "+parsedDocName);
-    	    
-    	    Integer pageRankDocID=this.pageRankNamesToDocID.get(parsedDocName);
-    	    
-    	    Double pageRank=pageRanks.get(pageRankDocID);
-    	    if(pageRank==null){
-    	    	System.err.println("PageRank is null for docID:"+docID+ " docName:"+this.docIDs.get(""+docID));	    
-    	    	pageRank=0.0;
-    	    }
     	    //Scale pageRank by 100 to get it in the same scale as the tf_idf
-    	    pageRank=pageRank*100;
+    	    double pageRank=this.getPageRank(docID)*100;
     	    
     	    double finalScore=tfIDF*(1-pageRankInfluence)+pageRank*pageRankInfluence;
     	    
@@ -1001,46 +1160,84 @@ public class HashedIndex implements Index {
     */
     private double getPageRank(int docID){
 
-    	    //First we need to get the correct pageRankDocID
-    	    String docName=this.docIDs.get(""+docID);
-    	    //String[] splitUp=docName.split("/");
-    	    //String parsedDocName=splitUp[1].substring(0,splitUp[1].length()-2);
-    	    String parsedDocName=docName.substring(10,docName.length()-2);
-    	    //System.err.println("DocName "+parsedDocName);
-    	    
-    	    Integer pageRankDocID=this.pageRankNamesToDocID.get(parsedDocName);
-    	    
-    	    Double pageRank=pageRanks.get(pageRankDocID);
-    	    if(pageRank==null){
-    	    	System.err.println("PageRank is null for docID:"+docID+ " docName:"+this.docIDs.get(""+docID));	    
+    	    if(docPageRanks==null || docID>=docPageRanks.length){
+    	    	    docPageRanks=this.joinPageRanks(docPageRanks);
+    	    }
+    	    double pageRank=docID<docPageRanks.length ? docPageRanks[docID] : Double.NaN;
+    	    if(Double.isNaN(pageRank)){
+    	    	System.err.println("PageRank is null for docID:"+docID+ " docName:"+this.documents.name(docID));	    
     	    	pageRank=0.0;
     	    }
 
 	    return pageRank;
     	    
     }
+    
+    /**
+    	Joins the PageRanks read from file with the documents on their
+    	names, NaN for the documents that have no PageRank. The PageRanks
+    	in known are kept, they may have been read from a Snapshot, whose
+    	index reads the files the first time it joins.
+    */
+    private double[] joinPageRanks(double[] known){
+    	    double[] res=new double[this.documents.capacity()];
+    	    Arrays.fill(res,Double.NaN);
+    	    if(known!=null){
+    	    	    System.arraycopy(known,0,res,0,Math.min(known.length,res.length));
+    	    }
+    	    if(!pageRanksRead){
+    	    	    pageRanks=this.readPageRankFromFile();
+    	    	    pageRanksRead=true;
+    	    }
+    	    if(pageRanks==null){
+    	    	    return res;
+    	    }
+    	    for(int docID=0;docID<res.length;docID++){
+    	    	    if(!Double.isNaN(res[docID])){
+    	    	    	    continue;
+    	    	    }
+    	    	    String docName=this.documents.name(docID);
+    	    	    if(docName==null || docName.length()<12){
+    	    	    	    continue;
+    	    	    }
+    	    	    //First we need to get the correct pageRankDocID
+    	    	    //String[] splitUp=docName.split("/");
+    	    	    //String parsedDocName=splitUp[1].substring(0,splitUp[1].length()-2);
+    	    	    String parsedDocName=docName.substring(10,docName.length()-2);
+    	    	    Double pageRank=pageRanks.get(this.pageRankNamesToDocID.get(parsedDocName));
+    	    	    if(pageRank!=null){
+    	    	    	    res[docID]=pageRank;
+    	    	    }
+    	    }
+    	    return res;
+    }
     	    
-    private PostingsList subphraseQuery(Query query, int queryType, int rankingType, int structureType){
+    private PostingsList subphraseQuery(Query query, int queryType, int rankingType, int structureType, int K){
     
-    	    //Get the biword list
-    	    PostingsList biwordList=biwordIndex.search(query,queryType,rankingType,structureType);
+    	    //Get the biword list, with room to see if there is more than SUBPHRASE_K results
+    	    int biwordK=K==0 ? 0 : Math.max(K,SUBPHRASE_K+1);
+    	    PostingsList biwordList=biwordIndex.search(query,queryType,rankingType,structureType,biwordK);
     	    //If there is enough results in the biword list
-    	    if(biwordList.size()>SUBPHRASE_K){
+    	    if(biwordList.totalSize()>SUBPHRASE_K){
+    	    	    if(K>0 && biwordList.size()>K){
+    	    	    	    return TopKHeap.select(biwordList,K);
+    	    	    }
     	    	    return biwordList;	
     	    }
-    	    //If there is not enough results get the uniword list
-    	    PostingsList uniwordList=this.fastCosineScore(query,0);
+    	    //If there is not enough results get the uniword list. The top K
+    	    //of the merged list can only come from the top K of each list
+    	    PostingsList uniwordList=this.fastCosineScore(query,K);
 
     	    //Now we should scale the scores so that the biword is worth more than the uniword
     	    //First the biword list
     	    double biwordScale=2.0/SUBPHRASE_SCALE;
     	    for(int i=0;i<biwordList.size();i++){
-    	    	    biwordList.get(i).score=biwordList.get(i).score*biwordScale;
+    	    	    biwordList.setScore(i,biwordList.score(i)*biwordScale);
     	    }
     	    //Then the uniword list
     	    double uniwordScale=1.0/SUBPHRASE_SCALE;
     	    for(int i=0;i<uniwordList.size();i++){
-    	    	uniwordList.get(i).score=uniwordList.get(i).score*uniwordScale;	    
+    	    	uniwordList.setScore(i,uniwordList.score(i)*uniwordScale);	    
     	    }
     	    
     	    //Then we need to sort the lists according to docID to be able to merge the two
@@ -1051,16 +1248,33 @@ public class HashedIndex implements Index {
     	    //Now merge the two
     	    PostingsList merged=this.mergeLists(biwordList,uniwordList);
     	    
-    	    return merged;
+    	    //And rank the merged list
+    	    return TopKHeap.select(merged,K);
     	    
 	    
     }
     
     
     
+    /**
+     *  Returns the name of document docID. A document that has been
+     *  flushed to disk is no longer in documents, its name is in the
+     *  segment.
+     */
+    public String docName( int docID ) {
+    	    String name=this.documents.name(docID);
+    	    if(name==null && SearchGUI.saveIndex){
+    	    	    name=this.diskIndex().docName(docID);
+    	    }
+    	    return name;
+    }
+    
     /**
      *  No need for cleanup in a HashedIndex.
      */
     public void cleanup() {
+    	    if(diskIndex!=null){
+    	    	    diskIndex.cleanup();
+    	    }
     }
 }
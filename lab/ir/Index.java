@@ -9,8 +9,8 @@
 
 package ir;
 
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 public interface Index {
 
@@ -32,13 +32,20 @@ public interface Index {
     public static final int BIGRAM = 1; 
     public static final int SUBPHRASE = 2; 
 	
-    public HashMap<String, String> docIDs = new HashMap<String,String>();
-    public HashMap<String,Integer> docLengths = new HashMap<String,Integer>();
+    /* Document names and lengths, indexed by docID */
+    public DocumentTable documents = new DocumentTable();
+    /* Views of the documents keyed by ""+docID */
+    public Map<String, String> docIDs = documents.nameMap();
+    public Map<String,Integer> docLengths = documents.lengthMap();
 
     public void insert( String token, int docID, int offset );
     public Iterator<String> getDictionary();
     public PostingsList getPostings( String token );
     public PostingsList search( Query query, int queryType, int rankingType, int structureType );
+    /* Ranked queries only return the K best documents, all if K==0 */
+    public PostingsList search( Query query, int queryType, int rankingType, int structureType, int K );
+    /* The name of document docID, or null if it is not in the index */
+    public String docName( int docID );
     public void cleanup();
     public void flushIndex();
 
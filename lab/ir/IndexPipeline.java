@@ -0,0 +1,494 @@
+
+
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *   Indexes files in four stages that run at the same time, each with
+ *   its own threads: crawl lists the files and gives them docIDs,
+ *   extract reads their text (PDFs too) with a FileIngester, tokenize
+ *   splits the text into UTF-8 encoded tokens, and invert builds an IndexShard of
+ *   each run of RUN_SIZE consecutive docIDs. The stages are connected by bounded queues, so
+ *   a stage that falls behind makes the ones before it wait, and crawl
+ *   lets at most RUN_SIZE documents per invert thread, plus two runs,
+ *   be on their way to invert. A slow PDF only holds up one extract
+ *   thread until its run is the oldest one that is not inverted.
+ *   The thread that calls run() adds the shards to the HashedIndex in
+ *   docID order, so the index is the same as if the files had been
+ *   indexed one by one.
+ */
+class IndexPipeline {
+
+    /** Documents per shard */
+    static final int RUN_SIZE=128;
+
+    /** Capacity of the queue in front of each stage */
+    static final int QUEUE_CAPACITY=64;
+
+    private static final Doc END_DOC=new Doc(null,0,null);
+
+    private final HashedIndex index;
+
+    final Stage<Run> invert;
+    final Stage<Doc> tokenize;
+    final Stage<Doc> extract;
+    final Stage<File> crawl;
+
+    /** Permits for the documents between crawl and invert */
+    private final Semaphore window;
+
+    /** The runs in docID order, as crawl starts them */
+    private final LinkedBlockingQueue<Run> runs=new LinkedBlockingQueue<Run>();
+    private final Run endRun=new Run(-1);
+
+    /** Each extract thread reads the files into a buffer of its own */
+    private final ThreadLocal<FileIngester> ingesters=new ThreadLocal<FileIngester>(){
+    	    protected FileIngester initialValue(){
+    	    	    return new FileIngester();
+    	    }
+    };
+
+    /** Used by crawl only */
+    private int nextDocID;
+    private Run current;
+
+    private final ArrayList<Thread> workers=new ArrayList<Thread>();
+    private Thread caller;
+    private volatile Throwable failure;
+
+
+    IndexPipeline(HashedIndex index, int extractThreads, int tokenizeThreads, int invertThreads){
+    	    this.index=index;
+    	    window=new Semaphore(RUN_SIZE*(Math.max(invertThreads,1)+2));
+    	    invert=new Stage<Run>("invert",invertThreads,endRun,null){
+    	    	    int process(Run run){
+    	    	    	    run.shard.run();
+    	    	    	    return run.size;
+    	    	    }
+    	    };
+    	    tokenize=new Stage<Doc>("tokenize",tokenizeThreads,END_DOC,invert){
+    	    	    int process(Doc doc) throws InterruptedException {
+    	    	    	    tokenize(doc);
+    	    	    	    if(doc.run.tokenized()){
+    	    	    	    	    invert.put(doc.run,this);
+    	    	    	    }
+    	    	    	    return 1;
+    	    	    }
+    	    };
+    	    extract=new Stage<Doc>("extract",extractThreads,END_DOC,tokenize){
+    	    	    int process(Doc doc) throws InterruptedException {
+    	    	    	    try{
+    	    	    	    	    ByteBuffer bytes=ingesters.get().read(doc.file);
+    	    	    	    	    doc.text=FileIngester.isPDF(bytes) ? FileIngester.pdfContents(bytes) : null;
+    	    	    	    	    if(doc.text==null){
+    	    	    	    	    	    // The buffer is used again for the next file
+    	    	    	    	    	    doc.bytes=ByteBuffer.wrap(Arrays.copyOf(bytes.array(),bytes.limit()));
+    	    	    	    	    }
+    	    	    	    }
+    	    	    	    catch(IOException e){
+    	    	    	    	    e.printStackTrace();
+    	    	    	    }
+    	    	    	    catch(RuntimeException e){
+    	    	    	    	    // PDFBox can fail on a broken PDF, only the document is skipped
+    	    	    	    	    e.printStackTrace();
+    	    	    	    }
+    	    	    	    tokenize.put(doc,this);
+    	    	    	    return 1;
+    	    	    }
+    	    };
+    	    crawl=new Stage<File>("crawl",1,new File(""),extract){
+    	    	    int process(File root) throws InterruptedException {
+    	    	    	    int files=crawl(root);
+    	    	    	    if(current!=null && current.seal()){
+    	    	    	    	    invert.put(current,this);
+    	    	    	    }
+    	    	    	    runs.put(endRun);
+    	    	    	    return files;
+    	    	    }
+    	    };
+    }
+
+
+    /**
+     *  Indexes the files under root, which get the docIDs firstDocID..
+     *  in the order Indexer.processFiles( root ) would have given them.
+     *  @return the number of docIDs used
+     */
+    int run(File root, int firstDocID){
+    	    nextDocID=firstDocID;
+    	    caller=Thread.currentThread();
+    	    // One thread, so the shards are added to the biword index in order
+    	    ExecutorService biwords=Executors.newSingleThreadExecutor();
+    	    try{
+    	    	    for(Stage<?> stage:new Stage<?>[]{invert,tokenize,extract,crawl}){
+    	    	    	    stage.start();
+    	    	    }
+    	    	    crawl.put(root,null);
+    	    	    crawl.finish();
+    	    	    Future<?> added=null;
+    	    	    Run run;
+    	    	    while((run=runs.take())!=endRun){
+    	    	    	    final IndexShard shard=run.shard.get();
+    	    	    	    for(int i=0;i<run.size;i++){
+    	    	    	    	    int docID=run.firstDocID+i;
+    	    	    	    	    index.documents.setName(docID,run.docs[i].file.toString());
+    	    	    	    	    index.documents.setModified(docID,run.docs[i].modified);
+    	    	    	    	    if(shard.lengths[i]>=0){
+    	    	    	    	    	    index.documents.setLength(docID,shard.lengths[i]);
+    	    	    	    	    }
+    	    	    	    }
+    	    	    	    final int[] termIDs=index.addShard(shard);
+    	    	    	    added=biwords.submit(new Runnable(){
+    	    	    	    	    public void run(){
+    	    	    	    	    	    index.addShardBiwords(shard,termIDs);
+    	    	    	    	    }
+    	    	    	    });
+    	    	    }
+    	    	    if(added!=null){
+    	    	    	    added.get();
+    	    	    }
+    	    }
+    	    catch(InterruptedException e){
+    	    	    if(failure!=null){
+    	    	    	    throw new IllegalStateException("Indexing failed",failure);
+    	    	    }
+    	    	    Thread.currentThread().interrupt();
+    	    }
+    	    catch(ExecutionException e){
+    	    	    throw new IllegalStateException("Indexing failed",e.getCause());
+    	    }
+    	    finally{
+    	    	    caller=null;
+    	    	    for(Thread thread:workers){
+    	    	    	    thread.interrupt();
+    	    	    }
+    	    	    biwords.shutdownNow();
+    	    }
+    	    return nextDocID-firstDocID;
+    }
+
+    /** The counters of the stages, one line each */
+    public String toString(){
+    	    return crawl+"\n"+extract+"\n"+tokenize+"\n"+invert;
+    }
+
+
+    /** Gives the files under root docIDs and passes them on to extract, returns the number of files */
+    private int crawl(File root) throws InterruptedException {
+    	    final int firstDocID=nextDocID;
+    	    try{
+    	    	    new FileIngester.Walker(){
+    	    	    	    void file(Path file, BasicFileAttributes attrs) throws IOException {
+    	    	    	    	    try{
+    	    	    	    	    	    crawl(file,attrs.lastModifiedTime().toMillis());
+    	    	    	    	    }
+    	    	    	    	    catch(InterruptedException e){
+    	    	    	    	    	    throw new InterruptedIOException();
+    	    	    	    	    }
+    	    	    	    }
+    	    	    }.walk(root);
+    	    }
+    	    catch(InterruptedIOException e){
+    	    	    throw new InterruptedException();
+    	    }
+    	    catch(IOException e){
+    	    	    e.printStackTrace();
+    	    }
+    	    return nextDocID-firstDocID;
+    }
+
+    private void crawl(Path file, long modified) throws InterruptedException {
+    	    if(!window.tryAcquire()){
+    	    	    long start=System.nanoTime();
+    	    	    window.acquire();
+    	    	    crawl.blockedNanos.addAndGet(System.nanoTime()-start);
+    	    }
+    	    if(current==null || current.size==RUN_SIZE){
+    	    	    if(current!=null && current.seal()){
+    	    	    	    invert.put(current,crawl);
+    	    	    }
+    	    	    current=new Run(nextDocID);
+    	    	    runs.put(current);
+    	    }
+    	    nextDocID++;
+    	    Doc doc=new Doc(file,modified,current);
+    	    current.add(doc);
+    	    extract.put(doc,crawl);
+    }
+
+    /** Text is tokenized straight from its bytes, the text of a PDF by a SimpleTokenizer */
+    private static void tokenize(Doc doc){
+    	    Tokens tokens=new Tokens();
+    	    if(doc.bytes!=null){
+    	    	    ByteTokenizer tok=new ByteTokenizer(doc.bytes);
+    	    	    while(tok.next()){
+    	    	    	    tokens.add(tok.term(),tok.termLength());
+    	    	    }
+    	    }
+    	    else if(doc.text!=null){
+    	    	    try{
+    	    	    	    SimpleTokenizer tok=new SimpleTokenizer(new StringReader(doc.text));
+    	    	    	    while(tok.hasMoreTokens()){
+    	    	    	    	    byte[] term=tok.nextToken().getBytes(StandardCharsets.UTF_8);
+    	    	    	    	    tokens.add(term,term.length);
+    	    	    	    }
+    	    	    }
+    	    	    catch(IOException e){
+    	    	    	    e.printStackTrace();
+    	    	    	    tokens=null;
+    	    	    }
+    	    }
+    	    else{
+    	    	    tokens=null;
+    	    }
+    	    doc.tokens=tokens;
+    	    doc.bytes=null;
+    	    doc.text=null;
+    }
+
+    /** Stops the pipeline after an unexpected exception in one of its threads */
+    private void fail(Throwable e){
+    	    if(failure==null){
+    	    	    failure=e;
+    	    }
+    	    Thread thread=caller;
+    	    if(thread!=null){
+    	    	    thread.interrupt();
+    	    }
+    }
+
+
+    /** A file on its way through the pipeline */
+    private static class Doc {
+    	    final Path file;
+    	    final long modified;
+    	    final Run run;
+
+    	    /** Set by extract, the bytes of a text file or the text of a PDF */
+    	    ByteBuffer bytes;
+    	    String text;
+    	    /** Set by tokenize, null if the file could not be read */
+    	    Tokens tokens;
+
+    	    Doc(Path file, long modified, Run run){
+    	    	    this.file=file;
+    	    	    this.modified=modified;
+    	    	    this.run=run;
+    	    }
+    }
+
+    /** The UTF-8 bytes of the tokens of a document, one after the other */
+    private static class Tokens {
+    	    byte[] bytes=new byte[1024];
+    	    /** Token i ends at ends[i] and starts where token i-1 ends */
+    	    int[] ends=new int[128];
+    	    int size;
+
+    	    void add(byte[] term, int length){
+    	    	    int start=size==0 ? 0 : ends[size-1];
+    	    	    if(start+length>bytes.length){
+    	    	    	    bytes=Arrays.copyOf(bytes,Math.max(bytes.length*2,start+length));
+    	    	    }
+    	    	    if(size==ends.length){
+    	    	    	    ends=Arrays.copyOf(ends,size*2);
+    	    	    }
+    	    	    System.arraycopy(term,0,bytes,start,length);
+    	    	    ends[size++]=start+length;
+    	    }
+    }
+
+    /**
+     *  The documents of one shard. The run goes to invert when crawl
+     *  has sealed it and all its documents are tokenized.
+     */
+    private class Run implements Callable<IndexShard> {
+    	    final int firstDocID;
+    	    final Doc[] docs=new Doc[RUN_SIZE];
+    	    final FutureTask<IndexShard> shard=new FutureTask<IndexShard>(this);
+    	    int size;
+    	    private int tokenized;
+    	    private boolean sealed;
+
+    	    Run(int firstDocID){
+    	    	    this.firstDocID=firstDocID;
+    	    }
+
+    	    synchronized void add(Doc doc){
+    	    	    docs[size++]=doc;
+    	    }
+
+    	    /** No more documents, true if the run is ready for invert */
+    	    synchronized boolean seal(){
+    	    	    sealed=true;
+    	    	    return tokenized==size;
+    	    }
+
+    	    /** One more document is tokenized, true if the run is ready for invert */
+    	    synchronized boolean tokenized(){
+    	    	    tokenized++;
+    	    	    return sealed && tokenized==size;
+    	    }
+
+    	    public IndexShard call(){
+    	    	    IndexShard shard=new IndexShard(firstDocID,size);
+    	    	    for(int i=0;i<size;i++){
+    	    	    	    Tokens tokens=docs[i].tokens;
+    	    	    	    if(tokens!=null){
+    	    	    	    	    int start=0;
+    	    	    	    	    for(int offset=0;offset<tokens.size;offset++){
+    	    	    	    	    	    shard.insert(tokens.bytes,start,tokens.ends[offset]-start,firstDocID+i,offset);
+    	    	    	    	    	    start=tokens.ends[offset];
+    	    	    	    	    }
+    	    	    	    	    shard.lengths[i]=tokens.size;
+    	    	    	    	    docs[i].tokens=null;
+    	    	    	    }
+    	    	    }
+    	    	    window.release(size);
+    	    	    return shard;
+    	    }
+    }
+
+    /**
+     *  Threads that take items from a bounded queue until they take the
+     *  end marker, when the last of them tells the next stage that no
+     *  more items are coming. The counters can be read while the
+     *  pipeline runs.
+     */
+    abstract class Stage<T> {
+    	    final String name;
+    	    final int threads;
+    	    private final T end;
+    	    private final BlockingQueue<T> queue=new ArrayBlockingQueue<T>(QUEUE_CAPACITY);
+    	    private final Stage<?> next;
+    	    private final AtomicInteger running=new AtomicInteger();
+
+    	    private final AtomicLong docs=new AtomicLong();
+    	    private final AtomicLong busyNanos=new AtomicLong();
+    	    /** Time spent waiting for a full queue or the window, part of busyNanos */
+    	    private final AtomicLong blockedNanos=new AtomicLong();
+    	    private volatile int maxQueueDepth;
+
+    	    Stage(String name, int threads, T end, Stage<?> next){
+    	    	    this.name=name;
+    	    	    this.threads=Math.max(threads,1);
+    	    	    this.end=end;
+    	    	    this.next=next;
+    	    }
+
+    	    /** Handles an item, returns the number of documents it had */
+    	    abstract int process(T item) throws InterruptedException;
+
+    	    /** Documents handled so far */
+    	    long docs(){
+    	    	    return docs.get();
+    	    }
+
+    	    /** Documents per second of one thread, when it is not blocked */
+    	    double docsPerSecond(){
+    	    	    long working=busyNanos.get()-blockedNanos.get();
+    	    	    return working<=0 ? 0 : docs.get()*1e9/working;
+    	    }
+
+    	    /** Seconds that the threads together have waited for the next stage */
+    	    double blockedSeconds(){
+    	    	    return blockedNanos.get()/1e9;
+    	    }
+
+    	    int queueDepth(){
+    	    	    return queue.size();
+    	    }
+
+    	    int maxQueueDepth(){
+    	    	    return maxQueueDepth;
+    	    }
+
+    	    public String toString(){
+    	    	    return String.format("%-8s %2d threads %7d docs %8.0f docs/s per thread %7.2f s blocked, queue %d/%d (max %d)",
+    	    	    	    name,threads,docs(),docsPerSecond(),blockedSeconds(),queueDepth(),QUEUE_CAPACITY,maxQueueDepth);
+    	    }
+
+    	    /** Puts item in the queue, the time that from waits for room counts as blocked */
+    	    void put(T item, Stage<?> from) throws InterruptedException {
+    	    	    if(!queue.offer(item)){
+    	    	    	    long start=System.nanoTime();
+    	    	    	    queue.put(item);
+    	    	    	    if(from!=null){
+    	    	    	    	    from.blockedNanos.addAndGet(System.nanoTime()-start);
+    	    	    	    }
+    	    	    }
+    	    	    int depth=queue.size();
+    	    	    if(depth>maxQueueDepth){
+    	    	    	    maxQueueDepth=depth;
+    	    	    }
+    	    }
+
+    	    /** No more items are coming */
+    	    void finish() throws InterruptedException {
+    	    	    queue.put(end);
+    	    }
+
+    	    void start(){
+    	    	    running.set(threads);
+    	    	    for(int i=0;i<threads;i++){
+    	    	    	    Thread thread=new Thread(new Runnable(){
+    	    	    	    	    public void run(){
+    	    	    	    	    	    work();
+    	    	    	    	    }
+    	    	    	    },name+"-"+i);
+    	    	    	    thread.setDaemon(true);
+    	    	    	    workers.add(thread);
+    	    	    	    thread.start();
+    	    	    }
+    	    }
+
+    	    private void work(){
+    	    	    try{
+    	    	    	    T item;
+    	    	    	    while((item=queue.take())!=end){
+    	    	    	    	    long start=System.nanoTime();
+    	    	    	    	    docs.addAndGet(process(item));
+    	    	    	    	    busyNanos.addAndGet(System.nanoTime()-start);
+    	    	    	    }
+    	    	    	    if(running.decrementAndGet()>0){
+    	    	    	    	    // Leave the marker for the other threads of the stage
+    	    	    	    	    queue.put(end);
+    	    	    	    }
+    	    	    	    else if(next!=null){
+    	    	    	    	    next.finish();
+    	    	    	    }
+    	    	    }
+    	    	    catch(InterruptedException e){
+    	    	    	    // The pipeline is stopped
+    	    	    }
+    	    	    catch(RuntimeException e){
+    	    	    	    fail(e);
+    	    	    }
+    	    	    catch(Error e){
+    	    	    	    fail(e);
+    	    	    }
+    	    }
+    }
+}
@@ -0,0 +1,57 @@
+
+
+package ir;
+
+import java.util.Arrays;
+
+
+/**
+ *   The part of an in-memory index that one thread of a parallel Indexer
+ *   builds from a run of documents with consecutive docIDs. A shard has
+ *   its own TermDictionary, so threads never share anything while they
+ *   index, and HashedIndex.addShard() appends it to the index.
+ */
+class IndexShard {
+
+    final TermDictionary dictionary=new TermDictionary();
+
+    /** The postings of the word with id i in the shard's dictionary */
+    PostingsList[] index=new PostingsList[1024];
+
+    final BiwordIndex biwordIndex=new BiwordIndex(dictionary);
+
+    /** The docIDs of the shard are firstDocID.. and lengths[i] is the length of firstDocID+i, -1 if it could not be read */
+    final int firstDocID;
+    final int[] lengths;
+
+
+    IndexShard(int firstDocID, int nrOfDocs){
+    	    this.firstDocID=firstDocID;
+    	    this.lengths=new int[nrOfDocs];
+    	    Arrays.fill(lengths,-1);
+    }
+
+
+    /** Inserts a token, the docIDs must arrive in increasing order */
+    void insert(String token, int docID, int offset){
+    	    this.insert(dictionary.add(token),docID,offset);
+    }
+
+    /** Inserts the token with the UTF-8 bytes term[start..start+length) */
+    void insert(byte[] term, int start, int length, int docID, int offset){
+    	    this.insert(dictionary.add(term,start,length),docID,offset);
+    }
+
+    private void insert(int termID, int docID, int offset){
+    	    if(termID>=index.length){
+    	    	    index=Arrays.copyOf(index,Math.max(index.length*2,termID+1));
+    	    }
+    	    PostingsList list=index[termID];
+    	    if(list==null){
+    	    	    list=new PostingsList(true);
+    	    	    index[termID]=list;
+    	    }
+    	    list.addPosting(docID,offset);
+    	    biwordIndex.insert(termID,docID,offset);
+    }
+}
@@ -11,13 +11,17 @@ package ir;
 
 import java.io.File;
 import java.io.Reader;
-import java.io.FileReader;
 import java.io.StringReader;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.lang.StringBuilder;
 import org.apache.pdfbox.cos.COSDocument;
 import org.apache.pdfbox.pdfparser.*;
@@ -36,6 +40,12 @@ public class Indexer {
     /** The next docID to be generated. */
     private int lastDocID = 0;
 
+    /** Reads the files of processFiles( f ) and update( f ) */
+    private final FileIngester ingester = new FileIngester();
+
+    /** The pipeline that indexed the last directory, see processFiles( f, ... ) */
+    private IndexPipeline pipeline;
+
 
     /* ----------------------------------------------- */
 
@@ -70,60 +80,72 @@ public class Indexer {
      *  all its files and subdirectories are recursively processed.
      */
     public void processFiles( File f ) {
-	// do not try to index fs that cannot be read
-	if ( f.canRead() ) {
-		//System.err.println("ProcessFiles");
-		//System.err.println("SaveIndex="+SearchGUI.saveIndex);
-	    if ( f.isDirectory() ) {
-		String[] fs = f.list();
-		// an IO error could occur
-		if ( fs != null ) {
-		    for ( int i=0; i<fs.length; i++ ) {
-			processFiles( new File( f, fs[i] ));
-		    }
+	try {
+	    new FileIngester.Walker() {
+		void file( Path file, BasicFileAttributes attrs ) {
+		    processFile( file, attrs );
 		}
-	    } else {
-		//System.err.println( "Indexing " + f.getPath() );
-		// First register the document and get a docID
-		int docID = generateDocID();
-		index.docIDs.put( "" + docID, f.getPath() );
-		try {
-		    //  Read the first few bytes of the file to see if it is 
-		    // likely to be a PDF 
-		    Reader reader = new FileReader( f );
-		    char[] buf = new char[4];
-		    reader.read( buf, 0, 4 );
-		    if ( buf[0] == '%' && buf[1]=='P' && buf[2]=='D' && buf[3]=='F' ) {
-			// We assume this is a PDF file
-			try {
-			    String contents = extractPDFContents( f );
-			    reader = new StringReader( contents );
-			}
-			catch ( IOException e ) {
-			    // Perhaps it wasn't a PDF file after all
-			    reader = new FileReader( f );
-			}
-		    }
-		    else {
-			// We hope this is ordinary text
-			reader = new FileReader( f );
-		    }
-		    SimpleTokenizer tok = new SimpleTokenizer( reader );
-		    int offset = 0;
-		    while ( tok.hasMoreTokens() ) {
-			String token = tok.nextToken();
-			insertIntoIndex( docID, token, offset++ );
-		    }
-		    index.docLengths.put( "" + docID, offset );
-		    reader.close();
+	    }.walk( f );
+	}
+	catch ( IOException e ) {
+	    e.printStackTrace();
+	}
+    }
+
+    /** Tokenizes and indexes one file, the file is read once */
+    private void processFile( Path file, BasicFileAttributes attrs ) {
+	//System.err.println( "Indexing " + file );
+	// First register the document and get a docID
+	int docID = generateDocID();
+	index.documents.setName( docID, file.toString() );
+	index.documents.setModified( docID, attrs.lastModifiedTime().toMillis() );
+	try {
+	    ByteBuffer bytes = ingester.read( file );
+	    String pdf = FileIngester.isPDF( bytes ) ? FileIngester.pdfContents( bytes ) : null;
+	    int offset = 0;
+	    if ( pdf == null ) {
+		// Text is tokenized straight from the bytes that were read
+		ByteTokenizer tok = new ByteTokenizer( bytes );
+		while ( tok.next() ) {
+		    insertIntoIndex( docID, tok, offset++ );
 		}
-		catch ( IOException e ) {
-		    e.printStackTrace();
+	    }
+	    else {
+		Reader reader = new StringReader( pdf );
+		SimpleTokenizer tok = new SimpleTokenizer( reader );
+		while ( tok.hasMoreTokens() ) {
+		    String token = tok.nextToken();
+		    insertIntoIndex( docID, token, offset++ );
 		}
+		reader.close();
 	    }
+	    index.documents.setLength( docID, offset );
+	}
+	catch ( IOException e ) {
+	    e.printStackTrace();
 	}
     }
-    
+
+    /**
+     *  Indexes the files under @code{f} like processFiles( f ), in an
+     *  IndexPipeline with the given number of threads for each of its
+     *  stages. The index is the same as if the files had been indexed
+     *  one by one. Only an in-memory HashedIndex is built in a pipeline.
+     */
+    public void processFiles( File f, int extractThreads, int tokenizeThreads, int invertThreads ) {
+	if ( SearchGUI.saveIndex || !( index instanceof HashedIndex )) {
+	    processFiles( f );
+	    return;
+	}
+	pipeline = new IndexPipeline( (HashedIndex)index, extractThreads, tokenizeThreads, invertThreads );
+	lastDocID += pipeline.run( f, lastDocID );
+    }
+
+    /** The pipeline of the last processFiles( f, ... ), for the counters of its stages, or null */
+    IndexPipeline pipeline() {
+	return pipeline;
+    }
+
     //Returns a tokenizer with the content of the file
     public static String processFile( File f ) {
 	// do not try to index fs that cannot be read
@@ -135,26 +157,7 @@ public class Indexer {
 		return null;
 	    } else {
 		try {
-		    //  Read the first few bytes of the file to see if it is 
-		    // likely to be a PDF 
-		    Reader reader = new FileReader( f );
-		    char[] buf = new char[4];
-		    reader.read( buf, 0, 4 );
-		    if ( buf[0] == '%' && buf[1]=='P' && buf[2]=='D' && buf[3]=='F' ) {
-			// We assume this is a PDF file
-			try {
-			    String contents = extractPDFContents( f );
-			    reader = new StringReader( contents );
-			}
-			catch ( IOException e ) {
-			    // Perhaps it wasn't a PDF file after all
-			    reader = new FileReader( f );
-			}
-		    }
-		    else {
-			// We hope this is ordinary text
-			reader = new FileReader( f );
-		    }
+		    Reader reader = new FileIngester().open( f.toPath() );
 		    SimpleTokenizer tok = new SimpleTokenizer( reader );
 		    StringBuilder fileContent=new StringBuilder();
 		    while ( tok.hasMoreTokens() ) {
@@ -180,6 +183,65 @@ public class Indexer {
     public void flushIndex(){
     	index.flushIndex();	    
     }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Brings an index of the directory structure @code{f} up to date
+     *  without indexing it again. New files and files that have been
+     *  modified since they were indexed get new docIDs, larger than all
+     *  the others, so their postings are appended after the existing
+     *  ones. The old version of a modified file and the files that are
+     *  gone are deleted from the document table. Unchanged files are only
+     *  stat:ed, so the cost grows with the number of changed files.
+     *  @return the number of documents that were indexed or deleted
+     */
+    public int update( File f ) {
+	//The indexed documents under f that have not been seen yet
+	HashMap<String,Integer> unseen = new HashMap<String,Integer>();
+	String prefix = f.getPath() + File.separator;
+	for ( int docID=0; docID<=index.documents.maxDocID(); docID++ ) {
+	    String name = index.documents.name( docID );
+	    if ( name != null && !index.documents.isDeleted( docID ) && ( name.equals( f.getPath() ) || name.startsWith( prefix ))) {
+		unseen.put( name, docID );
+	    }
+	}
+	//The new documents go after all the others
+	lastDocID = Math.max( lastDocID, index.documents.maxDocID()+1 );
+	int changed = updateFiles( f, unseen );
+	for ( int docID : unseen.values() ) {
+	    index.documents.delete( docID );
+	}
+	return changed + unseen.size();
+    }
+
+    /** Indexes the new and modified files under f, removes the files that are seen from unseen */
+    private int updateFiles( File f, final HashMap<String,Integer> unseen ) {
+	final int[] changed = new int[1];
+	try {
+	    new FileIngester.Walker() {
+		void file( Path file, BasicFileAttributes attrs ) {
+		    Integer docID = unseen.remove( file.toString() );
+		    long modified = attrs.lastModifiedTime().toMillis();
+		    if ( docID != null ) {
+			if ( index.documents.modified( docID ) == modified ) {
+			    return;
+			}
+			//Replaced by the new version
+			index.documents.delete( docID );
+		    }
+		    processFile( file, attrs );
+		    changed[0]++;
+		}
+	    }.walk( f );
+	}
+	catch ( IOException e ) {
+	    e.printStackTrace();
+	}
+	return changed[0];
+    }
     
     
     
@@ -191,14 +253,35 @@ public class Indexer {
      */
     public static String extractPDFContents( File f ) throws IOException {
 	FileInputStream fi = new FileInputStream( f );
-	PDFParser parser = new PDFParser( fi );   
+	try {
+	    return extractPDFContents( fi );
+	}
+	finally {
+	    fi.close();
+	}
+    }
+
+    /**
+     *  Extracts the textual contents of the PDF that is read from in.
+     */
+    static String extractPDFContents( InputStream in ) throws IOException {
+	return extractPDFContents( in, new PDFTextStripper() );
+    }
+
+    /**
+     *  Extracts the textual contents of the PDF that is read from in with
+     *  a stripper that can be used again for the next PDF.
+     */
+    static String extractPDFContents( InputStream in, PDFTextStripper stripper ) throws IOException {
+	PDFParser parser = new PDFParser( in );   
 	parser.parse();   
-	fi.close();
 	COSDocument cd = parser.getDocument();   
-	PDFTextStripper stripper = new PDFTextStripper();   
-	String result = stripper.getText( new PDDocument( cd ));  
-	cd.close();
-	return result;
+	try {
+	    return stripper.getText( new PDDocument( cd ));  
+	}
+	finally {
+	    cd.close();
+	}
     }
 
 
@@ -211,5 +294,15 @@ public class Indexer {
     public void insertIntoIndex( int docID, String token, int offset ) {
 	index.insert( token, docID, offset );
     }
+
+    /** Inserts the current token of tok, without a String if the index is a HashedIndex */
+    private void insertIntoIndex( int docID, ByteTokenizer tok, int offset ) {
+	if ( index instanceof HashedIndex ) {
+	    ((HashedIndex)index).insert( tok.term(), 0, tok.termLength(), docID, offset );
+	}
+	else {
+	    index.insert( tok.token(), docID, offset );
+	}
+    }
 }
 	
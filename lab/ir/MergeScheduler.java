@@ -0,0 +1,170 @@
+
+
+package ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+
+/**
+ *   Merges the segments of a DiskIndex on a background thread, so that a
+ *   query does not have to go through every segment the flushes write.
+ *
+ *   The segments are put in size tiers: tier 0 holds the segments of at
+ *   most MIN_BYTES and tier t those of at most MIN_BYTES*MERGE_FACTOR^t.
+ *   When MERGE_FACTOR segments that are next to each other in docID
+ *   order are in the same tier they are merged, which gives a segment
+ *   of the next tier. Every posting is thus rewritten about once per
+ *   tier, and n flushes leave O(MERGE_FACTOR*log(n)) segments. Only
+ *   neighbours are merged, so the docIDs of a segment stay a range.
+ *
+ *   A merge writes at most SearchGUI.mergeRate MB/s, so it does not
+ *   starve the flushes and queries of disk bandwidth. The merged segment
+ *   replaces the old ones in the DiskIndex in one step, and the files of
+ *   the old segments are deleted after that. Queries that are still
+ *   running on them can finish, their files stay mapped.
+ */
+public class MergeScheduler implements Runnable {
+
+    /** Number of segments of a tier that are merged together */
+    static final int MERGE_FACTOR=4;
+
+    /** Upper size of tier 0 in bytes */
+    static final long MIN_BYTES=2L<<20;
+
+    private final DiskIndex index;
+
+    /** Set when a segment has been added since the last merges */
+    private boolean pending=false;
+
+    /** The segments that cannot be merged since their docIDs overlap, see key(), they are not tried again */
+    private final HashSet<String> failed=new HashSet<String>();
+
+    /** The segments whose merge failed with an IOException, they are tried again after the next flush */
+    private final HashSet<String> retry=new HashSet<String>();
+
+
+    /** Starts the merge thread of index */
+    public MergeScheduler(DiskIndex index){
+    	    this.index=index;
+    	    Thread thread=new Thread(this,"MergeScheduler");
+    	    thread.setDaemon(true);
+    	    thread.setPriority(Thread.MIN_PRIORITY);
+    	    thread.start();
+    }
+
+
+    /** Tells the merge thread that a segment has been added */
+    public synchronized void maybeMerge(){
+    	    pending=true;
+    	    this.notifyAll();
+    }
+
+    public void run(){
+    	    while(true){
+    	    	    synchronized(this){
+    	    	    	    while(!pending){
+    	    	    	    	    try{
+    	    	    	    	    	    this.wait();
+    	    	    	    	    }
+    	    	    	    	    catch(InterruptedException e){
+    	    	    	    	    	    return;
+    	    	    	    	    }
+    	    	    	    }
+    	    	    	    pending=false;
+    	    	    }
+    	    	    retry.clear();
+    	    	    //Merge until no tier has MERGE_FACTOR neighbours, a
+    	    	    //merge can fill up the next tier. A merge that fails is
+    	    	    //skipped by findMerge(), so the other tiers are still merged
+    	    	    Segment[] segments=this.findMerge();
+    	    	    while(segments!=null){
+    	    	    	    this.merge(segments);
+    	    	    	    segments=this.findMerge();
+    	    	    }
+    	    }
+    }
+
+    /**
+     *  Returns the neighbours of the lowest tier that should be merged,
+     *  or null if there are none. Neighbours whose docIDs overlap are
+     *  skipped, otherwise they would be tried again after every flush,
+     *  and so are those that failed with an IOException since the last
+     *  flush.
+     */
+    private Segment[] findMerge(){
+    	    Segment[] segments=index.segments();
+    	    int bestTier=Integer.MAX_VALUE;
+    	    int bestStart=-1;
+    	    int start=0;
+    	    for(int i=0;i<segments.length;i++){
+    	    	    int tier=tier(segments[i].bytes());
+    	    	    if(i>0 && tier!=tier(segments[i-1].bytes())){
+    	    	    	    start=i;
+    	    	    }
+    	    	    if(i-start+1>=MERGE_FACTOR && tier<bestTier && !this.failed(key(segments,i-MERGE_FACTOR+1))){
+    	    	    	    bestTier=tier;
+    	    	    	    bestStart=i-MERGE_FACTOR+1;
+    	    	    }
+    	    }
+    	    if(bestStart<0){
+    	    	    return null;
+    	    }
+    	    return Arrays.copyOfRange(segments,bestStart,bestStart+MERGE_FACTOR);
+    }
+
+    /**
+     *  Merges segments into a new segment, swaps it into the index and
+     *  deletes the old segments.
+     *  @return false if the merge failed
+     */
+    private boolean merge(Segment[] segments){
+    	    File dir=index.directory();
+    	    try{
+    	    	    long timeBefore=System.nanoTime();
+    	    	    String name=Segment.merge(dir,segments,SearchGUI.mergeRate*(1<<20));
+    	    	    Segment merged=Segment.open(dir,name);
+    	    	    index.replace(segments,merged);
+    	    	    for(Segment segment:segments){
+    	    	    	    Segment.delete(dir,segment.name());
+    	    	    }
+    	    	    System.err.println("Merged "+segments.length+" segments into "+name+" in "+(System.nanoTime()-timeBefore)/1000000+"ms");
+    	    	    return true;
+    	    }
+    	    catch(IOException e){
+    	    	    System.err.println("Error merging the index files");
+    	    	    e.printStackTrace();
+    	    	    retry.add(key(segments,0));
+    	    }
+    	    catch(IllegalStateException e){
+    	    	    //The docIDs overlap, e.g. segments from an earlier run
+    	    	    System.err.println("Could not merge the index files: "+e.getMessage());
+    	    	    failed.add(key(segments,0));
+    	    }
+    	    return false;
+    }
+
+    private boolean failed(String key){
+    	    return failed.contains(key) || retry.contains(key);
+    }
+
+    /** The names of the MERGE_FACTOR segments from start */
+    private static String key(Segment[] segments, int start){
+    	    StringBuilder key=new StringBuilder();
+    	    for(int i=start;i<start+MERGE_FACTOR;i++){
+    	    	    key.append(segments[i].name()).append(' ');
+    	    }
+    	    return key.toString();
+    }
+
+    /** The tier of a segment of the given size */
+    static int tier(long bytes){
+    	    int tier=0;
+    	    for(long max=MIN_BYTES;bytes>max;max*=MERGE_FACTOR){
+    	    	    tier++;
+    	    }
+    	    return tier;
+    }
+}
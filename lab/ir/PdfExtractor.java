@@ -0,0 +1,192 @@
+
+
+package ir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.pdfbox.util.PDFTextStripper;
+
+
+/**
+ *   Extracts the text of PDFs in a pool of threads, each with a
+ *   PDFTextStripper that it uses again for the next PDF. At most as
+ *   many PDFs as there are threads are parsed at a time, and a caller
+ *   waits at most the timeout for a PDF, after which it gets an
+ *   IOException. PDFBox does not notice interrupts, so a PDF that has
+ *   timed out keeps its thread until it is done, and new PDFs wait for
+ *   a free thread, also for at most the timeout.
+ *   The text is cached in a directory under the SHA-1 of the bytes of
+ *   the PDF, so a PDF that has not changed is never parsed again, also
+ *   when it is moved or copied.
+ */
+class PdfExtractor {
+
+    private static PdfExtractor shared;
+
+    private final ExecutorService pool;
+    /** Permits for the threads, held while a PDF is parsed */
+    private final Semaphore free;
+    private final long timeoutMillis;
+    /** The cache, null for no cache */
+    private final File cacheDir;
+
+    private final ThreadLocal<PDFTextStripper> strippers=new ThreadLocal<PDFTextStripper>(){
+    	    protected PDFTextStripper initialValue(){
+    	    	    try{
+    	    	    	    return new PDFTextStripper();
+    	    	    }
+    	    	    catch(IOException e){
+    	    	    	    throw new IllegalStateException("Could not create a PDFTextStripper",e);
+    	    	    }
+    	    }
+    };
+
+
+    PdfExtractor(int threads, long timeoutMillis, File cacheDir){
+    	    threads=Math.max(threads,1);
+    	    this.pool=Executors.newFixedThreadPool(threads,new ThreadFactory(){
+    	    	    public Thread newThread(Runnable r){
+    	    	    	    Thread thread=new Thread(r,"PDF");
+    	    	    	    thread.setDaemon(true);
+    	    	    	    return thread;
+    	    	    }
+    	    });
+    	    this.free=new Semaphore(threads);
+    	    this.timeoutMillis=timeoutMillis;
+    	    this.cacheDir=cacheDir;
+    }
+
+    /** The extractor with the settings of SearchGUI */
+    static synchronized PdfExtractor shared(){
+    	    if(shared==null){
+    	    	    shared=new PdfExtractor(SearchGUI.pdfThreads,SearchGUI.pdfTimeout*1000L,new File(SearchGUI.PDF_CACHE));
+    	    }
+    	    return shared;
+    }
+
+
+    /**
+     *  The text of the PDF with the bytes from position 0 to the limit,
+     *  the bytes are copied. Null if PDFBox could not parse it, perhaps
+     *  it wasn't a PDF after all, and an IOException if it took longer
+     *  than the timeout.
+     */
+    String text(ByteBuffer bytes) throws IOException {
+    	    byte[] pdf=Arrays.copyOf(bytes.array(),bytes.limit());
+    	    File cached=cacheDir==null ? null : new File(cacheDir,hash(pdf)+".txt");
+    	    if(cached!=null && cached.isFile()){
+    	    	    return new String(Files.readAllBytes(cached.toPath()),StandardCharsets.UTF_8);
+    	    }
+    	    String text=this.extract(pdf);
+    	    if(text!=null && cached!=null){
+    	    	    this.store(cached,text);
+    	    }
+    	    return text;
+    }
+
+
+    private String extract(byte[] pdf) throws IOException {
+    	    Extraction extraction=new Extraction(pdf);
+    	    try{
+    	    	    if(!free.tryAcquire(timeoutMillis,TimeUnit.MILLISECONDS)){
+    	    	    	    throw new IOException("No thread for the PDF within "+timeoutMillis+" ms, the others are busy");
+    	    	    }
+    	    	    Future<String> future=pool.submit(extraction);
+    	    	    try{
+    	    	    	    return future.get(timeoutMillis,TimeUnit.MILLISECONDS);
+    	    	    }
+    	    	    catch(TimeoutException e){
+    	    	    	    future.cancel(true);
+    	    	    	    throw new IOException("The PDF took more than "+timeoutMillis+" ms to extract");
+    	    	    }
+    	    	    finally{
+    	    	    	    //If it never started it never will, so its permit is given back here
+    	    	    	    if(extraction.started.compareAndSet(false,true)){
+    	    	    	    	    free.release();
+    	    	    	    }
+    	    	    }
+    	    }
+    	    catch(InterruptedException e){
+    	    	    Thread.currentThread().interrupt();
+    	    	    throw new InterruptedIOException();
+    	    }
+    	    catch(ExecutionException e){
+    	    	    if(e.getCause() instanceof IOException){
+    	    	    	    // Perhaps it wasn't a PDF file after all
+    	    	    	    return null;
+    	    	    }
+    	    	    throw new IOException("Could not extract the PDF",e.getCause());
+    	    }
+    }
+
+    /** Writes the text to the cache, through a temporary file so a reader never sees half of it */
+    private void store(File cached, String text){
+    	    try{
+    	    	    cacheDir.mkdirs();
+    	    	    File tmp=File.createTempFile("pdf",".tmp",cacheDir);
+    	    	    Files.write(tmp.toPath(),text.getBytes(StandardCharsets.UTF_8));
+    	    	    Files.move(tmp.toPath(),cached.toPath(),StandardCopyOption.ATOMIC_MOVE,StandardCopyOption.REPLACE_EXISTING);
+    	    }
+    	    catch(IOException e){
+    	    	    System.err.println("Could not cache the text of a PDF in "+cacheDir);
+    	    	    e.printStackTrace();
+    	    }
+    }
+
+    private static String hash(byte[] bytes){
+    	    try{
+    	    	    byte[] digest=MessageDigest.getInstance("SHA-1").digest(bytes);
+    	    	    StringBuilder hex=new StringBuilder();
+    	    	    for(byte b:digest){
+    	    	    	    hex.append(Character.forDigit((b>>4) & 0xF,16)).append(Character.forDigit(b & 0xF,16));
+    	    	    }
+    	    	    return hex.toString();
+    	    }
+    	    catch(NoSuchAlgorithmException e){
+    	    	    throw new IllegalStateException(e);
+    	    }
+    }
+
+
+    /** Parses one PDF in a thread of the pool, which has a permit for it */
+    private class Extraction implements Callable<String> {
+    	    final byte[] pdf;
+    	    /** Set by the thread that runs it, or by the caller if it gives up first */
+    	    final AtomicBoolean started=new AtomicBoolean();
+
+    	    Extraction(byte[] pdf){
+    	    	    this.pdf=pdf;
+    	    }
+
+    	    public String call() throws IOException {
+    	    	    if(!started.compareAndSet(false,true)){
+    	    	    	    return null;
+    	    	    }
+    	    	    try{
+    	    	    	    return Indexer.extractPDFContents(new ByteArrayInputStream(pdf),strippers.get());
+    	    	    }
+    	    	    finally{
+    	    	    	    free.release();
+    	    	    }
+    	    }
+    }
+}
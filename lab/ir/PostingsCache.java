@@ -0,0 +1,144 @@
+
+
+package ir;
+
+import java.util.LinkedHashMap;
+
+
+/**
+ *   Caches the PostingsLists that a DiskIndex has looked up in its
+ *   segments, so a term of one query is not read and merged over all
+ *   segments again by the next. The cache is bounded by the bytes of
+ *   the postings it holds and evicts with a segmented LRU:
+ *
+ *   A new list goes into the probation segment. If it is used again it
+ *   moves to the protected segment, which holds at most
+ *   PROTECTED_FRACTION of the bytes, and the least recently used lists
+ *   of protected go back to probation when it is full. Lists are only
+ *   evicted from probation, so a burst of terms that are used once
+ *   cannot push out the terms that are used all the time.
+ *
+ *   The lists are only valid for the segments they were read from, the
+ *   cache empties itself when it is used with other segments. The lists
+ *   are shared and must not be changed.
+ */
+public class PostingsCache {
+
+    /** Share of the bytes that the protected segment may hold */
+    static final double PROTECTED_FRACTION=0.8;
+
+    /** Bytes counted for an entry on top of its postings */
+    private static final int ENTRY_OVERHEAD=64;
+
+    private final long maxBytes;
+
+    /* Both in access order, the least recently used list first */
+    private final LinkedHashMap<String,PostingsList> probation=new LinkedHashMap<String,PostingsList>(16,0.75f,true);
+    private final LinkedHashMap<String,PostingsList> protectedLists=new LinkedHashMap<String,PostingsList>(16,0.75f,true);
+    private long probationBytes=0;
+    private long protectedBytes=0;
+
+    /** The segments that the cached lists were read from */
+    private Segment[] segments;
+
+    private long hits=0;
+    private long misses=0;
+    private long evictions=0;
+
+
+    /** A cache of at most maxBytes, 0 caches nothing */
+    public PostingsCache(long maxBytes){
+    	    this.maxBytes=maxBytes;
+    }
+
+
+    /** Returns the list of term read from segments, or null if it is not cached */
+    public synchronized PostingsList get(String term, Segment[] segments){
+    	    if(segments!=this.segments){
+    	    	    this.clear();
+    	    	    this.segments=segments;
+    	    }
+    	    PostingsList list=protectedLists.get(term);
+    	    if(list!=null){
+    	    	    hits++;
+    	    	    return list;
+    	    }
+    	    list=probation.remove(term);
+    	    if(list==null){
+    	    	    misses++;
+    	    	    return null;
+    	    }
+    	    //Used again, so it is promoted
+    	    hits++;
+    	    long bytes=weight(term,list);
+    	    probationBytes-=bytes;
+    	    protectedLists.put(term,list);
+    	    protectedBytes+=bytes;
+    	    while(protectedBytes>maxBytes*PROTECTED_FRACTION){
+    	    	    String eldest=eldest(protectedLists);
+    	    	    PostingsList demoted=protectedLists.remove(eldest);
+    	    	    bytes=weight(eldest,demoted);
+    	    	    protectedBytes-=bytes;
+    	    	    probation.put(eldest,demoted);
+    	    	    probationBytes+=bytes;
+    	    }
+    	    return list;
+    }
+
+    /** Caches the list of term that was read from segments */
+    public synchronized void put(String term, PostingsList list, Segment[] segments){
+    	    long bytes=weight(term,list);
+    	    if(segments!=this.segments || bytes>maxBytes || probation.containsKey(term) || protectedLists.containsKey(term)){
+    	    	    return;
+    	    }
+    	    probation.put(term,list);
+    	    probationBytes+=bytes;
+    	    while(probationBytes+protectedBytes>maxBytes){
+    	    	    String eldest=eldest(probation);
+    	    	    probationBytes-=weight(eldest,probation.remove(eldest));
+    	    	    evictions++;
+    	    }
+    }
+
+    /** Removes all lists, the counters are kept */
+    public synchronized void clear(){
+    	    probation.clear();
+    	    protectedLists.clear();
+    	    probationBytes=0;
+    	    protectedBytes=0;
+    }
+
+    public synchronized long hits(){
+    	    return hits;
+    }
+
+    public synchronized long misses(){
+    	    return misses;
+    }
+
+    public synchronized long evictions(){
+    	    return evictions;
+    }
+
+    /** Bytes of the cached lists */
+    public synchronized long bytes(){
+    	    return probationBytes+protectedBytes;
+    }
+
+    public synchronized String toString(){
+    	    long lookups=hits+misses;
+    	    return "hits="+hits+" misses="+misses+" evictions="+evictions+
+    	    	    " hitRate="+(lookups==0 ? 0 : 100*hits/lookups)+"% bytes="+this.bytes()+"/"+maxBytes+
+    	    	    " lists="+(probation.size()+protectedLists.size());
+    }
+
+
+    private static long weight(String term, PostingsList list){
+    	    return list.postingsBytes()+2L*term.length()+ENTRY_OVERHEAD;
+    }
+
+    /** The least recently used term of map */
+    private static String eldest(LinkedHashMap<String,PostingsList> map){
+    	    return map.keySet().iterator().next();
+    }
+}
@@ -0,0 +1,276 @@
+
+
+package ir;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ *   Forward-only cursor over a PostingsList. On a compressed list the
+ *   docIDs and term frequencies are decoded one posting at a time, and
+ *   the offsets of a posting are only decoded if offset() is called.
+ *   advance() jumps forward using the skip entries of a compressed list
+ *   or galloping search on an uncompressed one. A list that is mapped
+ *   from a segment file is decoded in place, straight from the mapping.
+ *
+ *   Usage:
+ *	PostingsCursor cur=list.cursor();
+ *	while(cur.next()){ ... cur.docID() ... }
+ */
+public class PostingsCursor {
+
+    private final PostingsList list;
+
+    /** Index of the current posting, -1 before the first next() */
+    private int index=-1;
+    private int docID=-1;
+    private int termFrequency=0;
+
+    /* Compressed lists only */
+    /** Byte position of the next posting */
+    private int pos=0;
+    /** Byte position of the offsets of the current posting */
+    private int offsetsPos;
+    private int[] decodedOffsets=new int[8];
+    private boolean offsetsDecoded=false;
+    private boolean atPending=false;
+
+
+    PostingsCursor(PostingsList list){
+    	    this.list=list;
+    }
+
+
+    /**
+     *  Moves to the next posting.
+     *  @return false if there are no more postings
+     */
+    public boolean next(){
+    	    if(index>=list.size()-1){
+    	    	    index=list.size();
+    	    	    return false;
+    	    }
+    	    index++;
+    	    if(!list.compressed){
+    	    	    docID=list.docID(index);
+    	    	    termFrequency=list.termFrequency(index);
+    	    	    return true;
+    	    }
+    	    offsetsDecoded=false;
+    	    atPending=false;
+    	    if(pos>=list.dataLength){
+    	    	    //The last posting is not encoded yet
+    	    	    atPending=true;
+    	    	    docID=list.pendingDocID;
+    	    	    termFrequency=list.pendingTermFrequency;
+    	    	    return true;
+    	    }
+    	    int prevDocID=index==0 ? 0 : docID;
+    	    int offsetBytes;
+    	    ByteBuffer mapped=list.mapped;
+    	    if(mapped!=null){
+    	    	    docID=prevDocID+readVByte(mapped);
+    	    	    termFrequency=readVByte(mapped);
+    	    	    offsetBytes=readVByte(mapped);
+    	    }
+    	    else{
+    	    	    byte[] data=list.data;
+    	    	    docID=prevDocID+readVByte(data);
+    	    	    termFrequency=readVByte(data);
+    	    	    offsetBytes=readVByte(data);
+    	    }
+    	    offsetsPos=pos;
+    	    //Skip the offsets, they are decoded lazily
+    	    pos+=offsetBytes;
+    	    return true;
+    }
+
+    /**
+     *  Moves forward to the first posting with docID>=target. Does not
+     *  move if the current posting already has docID>=target.
+     *  @return false if there is no such posting
+     */
+    public boolean advance(int target){
+    	    if(index>=list.size()){
+    	    	    return false;
+    	    }
+    	    if(index>=0 && docID>=target){
+    	    	    return true;
+    	    }
+    	    if(list.compressed){
+    	    	    skipTo(target);
+    	    }
+    	    else{
+    	    	    //Position the cursor just before the first candidate
+    	    	    index=list.gallop(index+1,target)-1;
+    	    }
+    	    while(next()){
+    	    	    if(docID>=target){
+    	    	    	    return true;
+    	    	    }
+    	    }
+    	    return false;
+    }
+
+    /**
+     *  Jumps to the end of the last block whose last docID is smaller
+     *  than target, if that is ahead of the current posting. The skip
+     *  entries are searched by galloping from the current block.
+     */
+    private void skipTo(int target){
+    	    int[] skipDocIDs=list.skipDocIDs;
+    	    int nrOfSkips=list.nrOfSkips;
+    	    int from=index<0 ? 0 : (index+1)/PostingsList.SKIP_INTERVAL;
+    	    if(from>=nrOfSkips || skipDocIDs[from]>=target){
+    	    	    return;
+    	    }
+    	    //Gallop to find a skip entry with docID>=target
+    	    int low=from;
+    	    int high=from+1;
+    	    int step=2;
+    	    while(high<nrOfSkips && skipDocIDs[high]<target){
+    	    	    low=high;
+    	    	    high=from+step;
+    	    	    step*=2;
+    	    }
+    	    if(high>nrOfSkips){
+    	    	    high=nrOfSkips;
+    	    }
+    	    //skipDocIDs[low]<target and skipDocIDs[high]>=target (or high==nrOfSkips)
+    	    while(high-low>1){
+    	    	    int mid=(low+high)>>>1;
+    	    	    if(skipDocIDs[mid]<target){
+    	    	    	    low=mid;
+    	    	    }
+    	    	    else{
+    	    	    	    high=mid;
+    	    	    }
+    	    }
+    	    int skipIndex=(low+1)*PostingsList.SKIP_INTERVAL-1;
+    	    if(skipIndex>index){
+    	    	    index=skipIndex;
+    	    	    docID=skipDocIDs[low];
+    	    	    pos=list.skipPositions[low];
+    	    	    offsetsDecoded=false;
+    	    }
+    }
+
+    /** Returns true when the cursor has moved past the last posting */
+    public boolean atEnd(){
+    	    return index>=list.size();
+    }
+
+    /** Byte position after the current posting in a compressed list */
+    int endPosition(){
+    	    return pos;
+    }
+
+    /** Index of the current posting in the list */
+    public int index(){
+    	    return index;
+    }
+
+    public int docID(){
+    	    return docID;
+    }
+
+    public int termFrequency(){
+    	    return termFrequency;
+    }
+
+    /** Returns the jth offset of the current posting */
+    public int offset(int j){
+    	    if(j<0 || j>=termFrequency){
+    	    	    throw new IndexOutOfBoundsException("Offset: "+j+", Term frequency: "+termFrequency);
+    	    }
+    	    if(!list.compressed){
+    	    	    return list.offset(index,j);
+    	    }
+    	    if(atPending){
+    	    	    return list.pendingOffsets[j];
+    	    }
+    	    if(!offsetsDecoded){
+    	    	    decodeOffsets();
+    	    }
+    	    return decodedOffsets[j];
+    }
+
+    /**
+     *  Returns an array that holds the offsets of the current posting,
+     *  from offsetsStart() and termFrequency() elements on. It is only
+     *  valid until the cursor moves and must not be changed.
+     *
+     *	int[] offsets=cur.offsets();
+     *	int start=cur.offsetsStart();
+     *	for(int j=0;j<cur.termFrequency();j++){ ... offsets[start+j] ... }
+     */
+    public int[] offsets(){
+    	    if(!list.compressed){
+    	    	    return list.offsetPool();
+    	    }
+    	    if(atPending){
+    	    	    return list.pendingOffsets;
+    	    }
+    	    if(!offsetsDecoded){
+    	    	    decodeOffsets();
+    	    }
+    	    return decodedOffsets;
+    }
+
+    /** Index of the first offset of the current posting in offsets() */
+    public int offsetsStart(){
+    	    if(!list.compressed){
+    	    	    return list.offsetStart(index);
+    	    }
+    	    return 0;
+    }
+
+    private void decodeOffsets(){
+    	    if(decodedOffsets.length<termFrequency){
+    	    	    decodedOffsets=new int[Math.max(termFrequency,decodedOffsets.length*2)];
+    	    }
+    	    int next=pos;
+    	    pos=offsetsPos;
+    	    int offset=0;
+    	    ByteBuffer mapped=list.mapped;
+    	    if(mapped!=null){
+    	    	    for(int j=0;j<termFrequency;j++){
+    	    	    	    offset+=readVByte(mapped);
+    	    	    	    decodedOffsets[j]=offset;
+    	    	    }
+    	    }
+    	    else{
+    	    	    byte[] data=list.data;
+    	    	    for(int j=0;j<termFrequency;j++){
+    	    	    	    offset+=readVByte(data);
+    	    	    	    decodedOffsets[j]=offset;
+    	    	    }
+    	    }
+    	    pos=next;
+    	    offsetsDecoded=true;
+    }
+
+    private int readVByte(byte[] data){
+    	    int value=0;
+    	    int shift=0;
+    	    byte b=data[pos++];
+    	    while(b<0){
+    	    	    value|=(b & 0x7F)<<shift;
+    	    	    shift+=7;
+    	    	    b=data[pos++];
+    	    }
+    	    return value | (b<<shift);
+    }
+
+    private int readVByte(ByteBuffer data){
+    	    int value=0;
+    	    int shift=0;
+    	    byte b=data.get(pos++);
+    	    while(b<0){
+    	    	    value|=(b & 0x7F)<<shift;
+    	    	    shift+=7;
+    	    	    b=data.get(pos++);
+    	    }
+    	    return value | (b<<shift);
+    }
+}
@@ -9,15 +9,17 @@
 package ir;
 
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.lang.StringBuffer;
 
 public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
     
     public int docID;
-    public String docName=null;
-    public ArrayList<Integer> offsets=null;
     public double score;
+    
+    /** The offsets are offsets[0..nrOfOffsets), no boxing per offset */
+    private int[] offsets=null;
+    private int nrOfOffsets=0;
 
     /**
      *  PostingsEntries are compared by their score (only relevant 
@@ -33,10 +35,37 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
     }
     
     public void addOffset(int offset){
-    	    if(this.offsets==null){
-    	    	this.offsets=new ArrayList<Integer>();	    
+    	    ensureCapacity(nrOfOffsets+1);
+    	    this.offsets[nrOfOffsets++]=offset;
+    }
+    
+    /** Adds len offsets from src, starting at src[from] */
+    public void addOffsets(int[] src, int from, int len){
+    	    ensureCapacity(nrOfOffsets+len);
+    	    System.arraycopy(src,from,this.offsets,nrOfOffsets,len);
+    	    nrOfOffsets+=len;
+    }
+    
+    /** Number of offsets, i.e. the term frequency */
+    public int nrOfOffsets(){
+    	    return nrOfOffsets;
+    }
+    
+    /** Returns the jth offset */
+    public int offset(int j){
+    	    if(j<0 || j>=nrOfOffsets){
+    	    	    throw new IndexOutOfBoundsException("Offset: "+j+", Size: "+nrOfOffsets);
+    	    }
+    	    return offsets[j];
+    }
+    
+    private void ensureCapacity(int capacity){
+    	    if(offsets==null){
+    	    	    offsets=new int[Math.max(capacity,4)];
+    	    }
+    	    else if(capacity>offsets.length){
+    	    	    offsets=Arrays.copyOf(offsets,Math.max(capacity,offsets.length*2));
     	    }
-    	    this.offsets.add(offset);
     }
      
     public int compareTo( PostingsEntry other ) {
@@ -48,11 +77,6 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
     	    return this.docID==other.docID;
     }
 
-    public void setDocName(String docName){
-    	    
-    	   this.docName=docName; 
-    	  }
-    
     public void setScore(double score){
 
     	    this.score=score;
@@ -64,8 +88,12 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
     	    return this.docID;
     }
     
-    public ArrayList<Integer> getOffsets(){
-    	return this.offsets;	    
+    /** Returns a copy of the offsets */
+    public int[] getOffsets(){
+    	if(this.offsets==null){
+    		return new int[0];
+    	}
+    	return Arrays.copyOf(this.offsets,nrOfOffsets);	    
     }
     
     public String toString(){
@@ -73,11 +101,11 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
 	StringBuffer buf=new StringBuffer();
 	buf.append(docID);
 	buf.append("|");
-	if(offsets!=null && offsets.size()!=0){
-		buf.append(offsets.get(0));
-		for(int i=1;i<offsets.size();i++){
+	if(nrOfOffsets!=0){
+		buf.append(offsets[0]);
+		for(int i=1;i<nrOfOffsets;i++){
 			buf.append(",");
-			buf.append(offsets.get(i));
+			buf.append(offsets[i]);
 		}
 	}
 	
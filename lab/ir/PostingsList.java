@@ -8,123 +8,858 @@
 
 package ir;
 
-import java.util.LinkedList;
 import java.io.Serializable;
+import java.io.DataOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.lang.StringBuffer;
-import java.util.Collections;
-import java.util.Comparator;
 
 /**
  *   A list of postings for a given word.
+ *
+ *   The postings are stored column-wise in parallel primitive arrays
+ *   (docIDs, term frequencies, start index into a shared offsets pool
+ *   and scores) so that random access is O(1) and no object is needed
+ *   per posting. get() and iterator() still hand out PostingsEntry
+ *   objects for old callers, the hot loops should use the primitive
+ *   accessors instead.
+ *
+ *   A list can also be created compressed, which is what the indexes
+ *   use. Then every posting is stored as variable-byte encoded gaps:
+ *   the docID gap, the term frequency, the byte length of the offsets
+ *   and the offset gaps. Only the last posting, which can still get
+ *   offsets, is kept unencoded. A compressed list must be filled in
+ *   increasing docID order and has no scores. It is best read with a
+ *   PostingsCursor, which only decodes the offsets when asked for them.
+ *
+ *   Every SKIP_INTERVAL postings a compressed list records a skip entry
+ *   (the last docID of the block and the byte position after it), so a
+ *   cursor can jump over whole blocks in PostingsCursor.advance().
+ *
+ *   A compressed list read from a segment can keep its encoded postings
+ *   in the memory mapped segment file instead of in data. They are only
+ *   copied to the heap if the list is changed.
  */
 public class PostingsList implements Serializable {
-    
-    /** The postings list as a linked list. */
-    private LinkedList<PostingsEntry> list = new LinkedList<PostingsEntry>();
+
+    private static final int INITIAL_CAPACITY=4;
+
+    /** Number of postings between two skip entries in a compressed list */
+    static final int SKIP_INTERVAL=64;
+
+    /** Number of postings in the list */
+    private int size=0;
+
+    private int[] docIDs;
+    private int[] termFrequencies;
+    private int[] offsetStarts;
+    private double[] scores;
+
+    /** The offsets of all postings, posting i owns
+        offsets[offsetStarts[i]..offsetStarts[i]+termFrequencies[i]) */
+    private int[] offsets;
+    private int nrOfOffsets=0;
+
+    /** True as long as the postings are in increasing docID order */
+    private boolean sortedOnDocID=true;
+
+    /** Number of matching documents if only the best ones were kept, -1 otherwise */
+    private int totalSize=-1;
+
+    /* Compressed representation */
+    final boolean compressed;
+    /** The encoded postings, all but the last one */
+    byte[] data;
+    int dataLength=0;
+    /** The encoded postings if they are mapped from a segment file, data is then null */
+    transient ByteBuffer mapped;
+    /** docID of the last encoded posting */
+    int lastEncodedDocID=0;
+    /** The last posting, kept unencoded while it can still grow */
+    boolean hasPending=false;
+    int pendingDocID;
+    int[] pendingOffsets;
+    int pendingTermFrequency=0;
+    /** Number of postings in data */
+    private int encodedPostings=0;
+    /** skipDocIDs[k] is the docID of posting (k+1)*SKIP_INTERVAL-1 and
+        skipPositions[k] the byte position of the posting after it */
+    int[] skipDocIDs;
+    int[] skipPositions;
+    int nrOfSkips=0;
+
+    /** Cursor reused by the random access methods on a compressed list */
+    private transient PostingsCursor randomAccess;
+
+    /** load() reads one byte of every PAGE_SIZE bytes */
+    private static final int PAGE_SIZE=4096;
+
+    /** Where load() puts the bytes it reads, so the reads are not optimized away */
+    private static volatile int loaded;
 
     public PostingsList(){
-    		    
+    	    this(false);
+    }
+
+    public PostingsList(boolean compressed){
+    	    this.compressed=compressed;
+    	    if(compressed){
+    	    	    data=new byte[INITIAL_CAPACITY*4];
+    	    	    pendingOffsets=new int[INITIAL_CAPACITY];
+    	    	    skipDocIDs=new int[0];
+    	    	    skipPositions=new int[0];
+    	    }
+    	    else{
+    	    	    docIDs=new int[INITIAL_CAPACITY];
+    	    	    termFrequencies=new int[INITIAL_CAPACITY];
+    	    	    offsetStarts=new int[INITIAL_CAPACITY];
+    	    	    scores=new double[INITIAL_CAPACITY];
+    	    	    offsets=new int[INITIAL_CAPACITY];
+    	    }
     }
-    
-    
+
+
     /**  Number of postings in this list  */
     public int size() {
-	return list.size();
+	return size;
+    }
+
+    /**
+     *  Number of documents that matched the query. Larger than size()
+     *  if this is a top-K result that only kept the best ones. When the
+     *  query was pruned it is a lower bound.
+     */
+    public int totalSize(){
+    	    return totalSize<0 ? size : totalSize;
+    }
+
+    void setTotalSize(int totalSize){
+    	    this.totalSize=totalSize;
+    }
+
+    public boolean isCompressed(){
+    	    return compressed;
+    }
+
+    /**  Returns a cursor positioned before the first posting */
+    public PostingsCursor cursor(){
+    	    return new PostingsCursor(this);
     }
 
     /**  Returns the ith posting */
     public PostingsEntry get( int i ) {
-	return list.get( i );
+    	checkIndex(i);
+    	PostingsEntry ent=new PostingsEntry(docID(i));
+    	ent.setScore(score(i));
+    	int tf=termFrequency(i);
+    	if(compressed){
+    		PostingsCursor cur=seek(i);
+    		ent.addOffsets(cur.offsets(),cur.offsetsStart(),tf);
+    	}
+    	else{
+    		ent.addOffsets(offsets,offsetStarts[i],tf);
+    	}
+	return ent;
+    }
+
+    /**  Returns the docID of the ith posting */
+    public int docID( int i ) {
+    	checkIndex(i);
+    	if(compressed){
+    		return seek(i).docID();
+    	}
+    	return docIDs[i];
+    }
+
+    /**  Returns the number of offsets (the term frequency) of the ith posting */
+    public int termFrequency( int i ) {
+    	checkIndex(i);
+    	if(compressed){
+    		return seek(i).termFrequency();
+    	}
+    	return termFrequencies[i];
+    }
+
+    /**  Returns the jth offset of the ith posting */
+    public int offset( int i, int j ) {
+    	int tf=termFrequency(i);
+    	if(j<0 || j>=tf){
+    		throw new IndexOutOfBoundsException("Offset: "+j+", Term frequency: "+tf);
+    	}
+    	if(compressed){
+    		return seek(i).offset(j);
+    	}
+    	return offsets[offsetStarts[i]+j];
+    }
+
+    /** The offsets pool of an uncompressed list */
+    int[] offsetPool(){
+    	return offsets;
+    }
+
+    /** Index of the first offset of the ith posting in offsetPool() */
+    int offsetStart( int i ){
+    	checkIndex(i);
+    	return offsetStarts[i];
     }
 
-    
+    /**  Returns the score of the ith posting (always 0 in a compressed list) */
+    public double score( int i ) {
+    	checkIndex(i);
+    	if(compressed){
+    		return 0;
+    	}
+    	return scores[i];
+    }
+
+    public void setScore( int i, double score ) {
+    	checkIndex(i);
+    	if(compressed){
+    		throw new UnsupportedOperationException("A compressed PostingsList has no scores");
+    	}
+    	scores[i]=score;
+    }
+
+    /**  docID of the last posting, or -1 if the list is empty */
+    public int lastDocID(){
+    	    if(size==0){
+    	    	    return -1;
+    	    }
+    	    if(compressed){
+    	    	    return hasPending ? pendingDocID : lastEncodedDocID;
+    	    }
+    	    return docIDs[size-1];
+    }
+
+
     public void addEntry(PostingsEntry newEntry){
     	    //The entries needs to be sorted according to docID, therefore
     	    //we need to find the right location for the entry
-    	 
-    	    if(list.size()>0){
-    	    	    if(!this.checkContains(newEntry.docID)){
-    	    		    list.add(newEntry);
+
+    	    if(!this.checkContains(newEntry.docID)){
+    	    	    appendPosting(newEntry.docID,newEntry.score);
+    	    	    int tf=newEntry.nrOfOffsets();
+    	    	    for(int j=0;j<tf;j++){
+    	    	    	    appendOffset(newEntry.offset(j));
     	    	    }
     	    }
-    	    else{
-    	    	list.add(newEntry);	    
+
+    }
+
+    /**
+     *  Adds the ith posting of another list (docID, score and offsets)
+     *  without creating a PostingsEntry for it.
+     */
+    public void addEntry(PostingsList other, int i){
+
+    	    if(!this.checkContains(other.docID(i))){
+    	    	    appendPosting(other.docID(i),other.score(i));
+    	    	    int tf=other.termFrequency(i);
+    	    	    if(other.compressed){
+    	    	    	    PostingsCursor cur=other.seek(i);
+    	    	    	    appendOffsets(cur.offsets(),cur.offsetsStart(),tf);
+    	    	    }
+    	    	    else{
+    	    	    	    appendOffsets(other.offsets,other.offsetStarts[i],tf);
+    	    	    }
+    	    }
+    }
+
+    /**
+     *  Adds an offset for docID. If docID is the last posting in the list
+     *  the offset is added to it, otherwise a new posting is appended.
+     *  This is the path used when building the index, where the docIDs
+     *  arrive in increasing order.
+     */
+    public void addPosting(int docID, int offset){
+    	    if(size==0 || lastDocID()!=docID){
+    	    	    appendPosting(docID,0);
     	    }
-    	   
+    	    appendOffset(offset);
+    }
+
+    /**
+     *  Appends a posting without offsets. The caller must make sure that
+     *  docID is not already in the list (no check is done).
+     */
+    public void addEntry(int docID, double score){
+    	    appendPosting(docID,score);
     }
-    
+
     public void addOffsetToLastEntry(int offset){
-    	    list.getLast().addOffset(offset);
+    	    if(size==0){
+    	    	    throw new NoSuchElementException();
+    	    }
+    	    appendOffset(offset);
     }
-    
+
     //Checks if the entry already exists in the list
     public boolean checkContains(int newdocID){
-    	    
-    	    if(this.list.size()==0){
-    	    	return false;	    
-    	    }
-    	    
-    	    int last=list.getLast().docID;
-    	    if(newdocID>last){
-    	    	return false;	    
+
+    	    if(size==0){
+    	    	return false;
     	    }
+
+    	    int last=lastDocID();
     	    if(newdocID==last){
     	    	    return true;
     	    }
-    	    Iterator<PostingsEntry> it=list.iterator();
-    	    
-    	    while(it.hasNext()){
-    	    	if(it.next().docID==newdocID){
-    	    		return true;	
+    	    if(compressed){
+    	    	    if(newdocID>last){
+    	    	    	    return false;
+    	    	    }
+    	    	    PostingsCursor cur=cursor();
+    	    	    while(cur.next()){
+    	    	    	    if(cur.docID()>=newdocID){
+    	    	    	    	    return cur.docID()==newdocID;
+    	    	    	    }
+    	    	    }
+    	    	    return false;
+    	    }
+    	    if(sortedOnDocID){
+    	    	    if(newdocID>last){
+    	    	    	    return false;
+    	    	    }
+    	    	    return binarySearch(newdocID)>=0;
+    	    }
+    	    for(int i=0;i<size;i++){
+    	    	if(docIDs[i]==newdocID){
+    	    		return true;
     	    	}
     	    }
     	    return false;
     }
-    
+
     public Iterator<PostingsEntry> iterator(){
-    	return list.iterator();	    
+    	return new Iterator<PostingsEntry>(){
+    		private int next=0;
+    		public boolean hasNext(){
+    			return next<size;
+    		}
+    		public PostingsEntry next(){
+    			if(next>=size){
+    				throw new NoSuchElementException();
+    			}
+    			return get(next++);
+    		}
+    		public void remove(){
+    			throw new UnsupportedOperationException();
+    		}
+    	};
     }
-    
+
     public String toString(){
-    	    
+
     	    StringBuffer buf=new StringBuffer();
-    	    
-    	    if(list.size()!=0){
-    	    	    buf.append(list.get(0));
-    	    	    for(int i=1;i<list.size();i++){
-    	    		    buf.append("&");
-    	    		    buf.append(list.get(i));
-    	    	    }
 
+    	    PostingsCursor cur=cursor();
+    	    while(cur.next()){
+    	    	    if(cur.index()>0){
+    	    	    	    buf.append("&");
+    	    	    }
+    	    	    buf.append(cur.docID());
+    	    	    buf.append("|");
+    	    	    for(int j=0;j<cur.termFrequency();j++){
+    	    	    	    if(j>0){
+    	    	    	    	    buf.append(",");
+    	    	    	    }
+    	    	    	    buf.append(cur.offset(j));
+    	    	    }
     	    }
 	    return buf.toString();
     }
-    
-    
+
+
+    /**
+     *  Sorts the postings in descending order of score. The sort is
+     *  stable, like Collections.sort.
+     */
     public void sortPostingsList(){
-    
-    	    Collections.sort(list);
-    	    
+
+    	    if(compressed){
+    	    	    throw new UnsupportedOperationException("A compressed PostingsList has no scores");
+    	    }
+    	    int[] order=identity();
+    	    sortOrder(order,new int[size],true);
+    	    permute(order);
+    	    sortedOnDocID=false;
+
     }
-    
+
     public void sortListOnDocID(){
-    	    
-    	    Collections.sort(list,new PostingsEntryIDComparator());
-    	    
-    }
-    
-    //
-    //  YOUR CODE HERE
-    //
-}
 
-class PostingsEntryIDComparator implements Comparator<PostingsEntry> {
-    @Override
-    public int compare(PostingsEntry a, PostingsEntry b) {
-        return a.docID < b.docID ? -1 : a.docID == b.docID ? 0 : 1;
+    	    if(compressed || sortedOnDocID){
+    	    	    return;
+    	    }
+    	    int[] order=identity();
+    	    sortOrder(order,new int[size],false);
+    	    permute(order);
+    	    sortedOnDocID=true;
+
+    }
+
+    /**
+     *  Number of bytes used by the postings themselves (the arrays, not
+     *  counting object headers and unused capacity).
+     */
+    public long postingsBytes(){
+    	    if(compressed){
+    	    	    return dataLength+4L*pendingTermFrequency;
+    	    }
+    	    return size*(4L+4L+4L+8L)+4L*nrOfOffsets;
+    }
+
+
+    private void checkIndex(int i){
+    	    if(i<0 || i>=size){
+    	    	    throw new IndexOutOfBoundsException("Index: "+i+", Size: "+size);
+    	    }
+    }
+
+    /** Returns the random access cursor positioned at posting i */
+    private PostingsCursor seek(int i){
+    	    if(randomAccess==null || randomAccess.index()>i){
+    	    	    randomAccess=cursor();
+    	    }
+    	    while(randomAccess.index()<i){
+    	    	    randomAccess.next();
+    	    }
+    	    return randomAccess;
     }
-}
-	
 
-			   
+    private int binarySearch(int docID){
+    	    int low=0;
+    	    int high=size-1;
+    	    while(low<=high){
+    	    	    int mid=(low+high)>>>1;
+    	    	    if(docIDs[mid]<docID){
+    	    	    	    low=mid+1;
+    	    	    }
+    	    	    else if(docIDs[mid]>docID){
+    	    	    	    high=mid-1;
+    	    	    }
+    	    	    else{
+    	    	    	    return mid;
+    	    	    }
+    	    }
+    	    return -(low+1);
+    }
+
+    /**
+     *  Returns the first i>=from with docIDs[i]>=target, or size if there
+     *  is none. Uses exponential (galloping) search followed by a binary
+     *  search, so the cost is logarithmic in the distance moved. Only for
+     *  uncompressed lists.
+     */
+    int gallop(int from, int target){
+    	    if(!sortedOnDocID){
+    	    	    while(from<size && docIDs[from]<target){
+    	    	    	    from++;
+    	    	    }
+    	    	    return from;
+    	    }
+    	    int step=1;
+    	    int low=from;
+    	    int high=from;
+    	    while(high<size && docIDs[high]<target){
+    	    	    low=high+1;
+    	    	    high=from+step;
+    	    	    step*=2;
+    	    }
+    	    if(high>size){
+    	    	    high=size;
+    	    }
+    	    //The answer is in [low,high]
+    	    while(low<high){
+    	    	    int mid=(low+high)>>>1;
+    	    	    if(docIDs[mid]<target){
+    	    	    	    low=mid+1;
+    	    	    }
+    	    	    else{
+    	    	    	    high=mid;
+    	    	    }
+    	    }
+    	    return low;
+    }
+
+    private void appendPosting(int docID, double score){
+    	    if(compressed){
+    	    	    if(size>0 && docID<=lastDocID()){
+    	    	    	    throw new IllegalStateException("docID "+docID+" added after "+lastDocID()+" to a compressed PostingsList");
+    	    	    }
+    	    	    unmap();
+    	    	    encodePending();
+    	    	    hasPending=true;
+    	    	    pendingDocID=docID;
+    	    	    pendingTermFrequency=0;
+    	    	    randomAccess=null;
+    	    }
+    	    else{
+    	    	    if(size==docIDs.length){
+    	    	    	    int newCapacity=Math.max(docIDs.length*2,INITIAL_CAPACITY);
+    	    	    	    docIDs=grow(docIDs,newCapacity);
+    	    	    	    termFrequencies=grow(termFrequencies,newCapacity);
+    	    	    	    offsetStarts=grow(offsetStarts,newCapacity);
+    	    	    	    double[] newScores=new double[newCapacity];
+    	    	    	    System.arraycopy(scores,0,newScores,0,size);
+    	    	    	    scores=newScores;
+    	    	    }
+    	    	    if(size>0 && docID<docIDs[size-1]){
+    	    	    	    sortedOnDocID=false;
+    	    	    }
+    	    	    docIDs[size]=docID;
+    	    	    termFrequencies[size]=0;
+    	    	    offsetStarts[size]=nrOfOffsets;
+    	    	    scores[size]=score;
+    	    }
+    	    size++;
+    }
+
+    private void appendOffsets(int[] src, int from, int len){
+    	    if(compressed){
+    	    	    for(int j=0;j<len;j++){
+    	    	    	    appendOffset(src[from+j]);
+    	    	    }
+    	    	    return;
+    	    }
+    	    if(nrOfOffsets+len>offsets.length){
+    	    	    offsets=grow(offsets,Math.max(offsets.length*2,nrOfOffsets+len));
+    	    }
+    	    System.arraycopy(src,from,offsets,nrOfOffsets,len);
+    	    nrOfOffsets+=len;
+    	    termFrequencies[size-1]+=len;
+    }
+
+    private void appendOffset(int offset){
+    	    if(compressed){
+    	    	    if(!hasPending){
+    	    	    	    throw new IllegalStateException("The last posting of a compressed PostingsList is already encoded");
+    	    	    }
+    	    	    if(pendingTermFrequency==pendingOffsets.length){
+    	    	    	    pendingOffsets=grow(pendingOffsets,pendingOffsets.length*2);
+    	    	    }
+    	    	    pendingOffsets[pendingTermFrequency++]=offset;
+    	    	    return;
+    	    }
+    	    if(nrOfOffsets==offsets.length){
+    	    	    offsets=grow(offsets,offsets.length*2);
+    	    }
+    	    offsets[nrOfOffsets++]=offset;
+    	    termFrequencies[size-1]++;
+    }
+
+    /** Copies mapped encoded postings to data, so the list can be changed */
+    private void unmap(){
+    	    if(mapped==null){
+    	    	    return;
+    	    }
+    	    data=new byte[Math.max(dataLength,INITIAL_CAPACITY*4)];
+    	    mapped.get(data,0,dataLength);
+    	    mapped=null;
+    	    randomAccess=null;
+    }
+
+    /** Encodes the pending posting into data */
+    private void encodePending(){
+    	    if(!hasPending){
+    	    	    return;
+    	    }
+    	    int docGap=pendingDocID-lastEncodedDocID;
+    	    int offsetBytes=0;
+    	    int prev=0;
+    	    for(int j=0;j<pendingTermFrequency;j++){
+    	    	    offsetBytes+=VByte.length(pendingOffsets[j]-prev);
+    	    	    prev=pendingOffsets[j];
+    	    }
+    	    int needed=VByte.length(docGap)+VByte.length(pendingTermFrequency)+VByte.length(offsetBytes)+offsetBytes;
+    	    if(dataLength+needed>data.length){
+    	    	    byte[] newData=new byte[Math.max(data.length*2,dataLength+needed)];
+    	    	    System.arraycopy(data,0,newData,0,dataLength);
+    	    	    data=newData;
+    	    }
+    	    int pos=VByte.write(data,dataLength,docGap);
+    	    pos=VByte.write(data,pos,pendingTermFrequency);
+    	    pos=VByte.write(data,pos,offsetBytes);
+    	    prev=0;
+    	    for(int j=0;j<pendingTermFrequency;j++){
+    	    	    pos=VByte.write(data,pos,pendingOffsets[j]-prev);
+    	    	    prev=pendingOffsets[j];
+    	    }
+    	    dataLength=pos;
+    	    lastEncodedDocID=pendingDocID;
+    	    hasPending=false;
+    	    encodedPostings++;
+    	    if(encodedPostings%SKIP_INTERVAL==0){
+    	    	    if(nrOfSkips==skipDocIDs.length){
+    	    	    	    skipDocIDs=grow(skipDocIDs,skipDocIDs.length*2);
+    	    	    	    skipPositions=grow(skipPositions,skipPositions.length*2);
+    	    	    }
+    	    	    skipDocIDs[nrOfSkips]=pendingDocID;
+    	    	    skipPositions[nrOfSkips]=dataLength;
+    	    	    nrOfSkips++;
+    	    }
+    	    pendingTermFrequency=0;
+    	    if(pendingOffsets.length>INITIAL_CAPACITY*16){
+    	    	    //Don't keep a large buffer around after a long document
+    	    	    pendingOffsets=new int[INITIAL_CAPACITY];
+    	    }
+    }
+
+    private static int[] grow(int[] arr, int newCapacity){
+    	    newCapacity=Math.max(newCapacity,INITIAL_CAPACITY);
+    	    int[] res=new int[newCapacity];
+    	    System.arraycopy(arr,0,res,0,arr.length);
+    	    return res;
+    }
+
+    private int[] identity(){
+    	    int[] order=new int[size];
+    	    for(int i=0;i<size;i++){
+    	    	    order[i]=i;
+    	    }
+    	    return order;
+    }
+
+    /** true if posting a should come after posting b */
+    private boolean after(int a, int b, boolean onScore){
+    	    if(onScore){
+    	    	    return Double.compare(scores[a],scores[b])<0;
+    	    }
+    	    return docIDs[a]>docIDs[b];
+    }
+
+    /** Stable merge sort of the positions in order */
+    private void sortOrder(int[] order, int[] tmp, boolean onScore){
+    	    for(int width=1;width<size;width*=2){
+    	    	    for(int low=0;low<size-width;low+=2*width){
+    	    	    	    int mid=low+width;
+    	    	    	    int high=Math.min(low+2*width,size);
+    	    	    	    if(!after(order[mid-1],order[mid],onScore)){
+    	    	    	    	    continue;
+    	    	    	    }
+    	    	    	    int i=low;
+    	    	    	    int j=mid;
+    	    	    	    int k=low;
+    	    	    	    while(i<mid && j<high){
+    	    	    	    	    if(after(order[i],order[j],onScore)){
+    	    	    	    	    	    tmp[k++]=order[j++];
+    	    	    	    	    }
+    	    	    	    	    else{
+    	    	    	    	    	    tmp[k++]=order[i++];
+    	    	    	    	    }
+    	    	    	    }
+    	    	    	    while(i<mid){
+    	    	    	    	    tmp[k++]=order[i++];
+    	    	    	    }
+    	    	    	    while(j<high){
+    	    	    	    	    tmp[k++]=order[j++];
+    	    	    	    }
+    	    	    	    System.arraycopy(tmp,low,order,low,high-low);
+    	    	    }
+    	    }
+    }
+
+    /** Rearranges all columns so that posting order[i] ends up at i */
+    private void permute(int[] order){
+    	    int capacity=docIDs.length;
+    	    int[] newDocIDs=new int[capacity];
+    	    int[] newTermFrequencies=new int[capacity];
+    	    int[] newOffsetStarts=new int[capacity];
+    	    double[] newScores=new double[capacity];
+    	    int[] newOffsets=new int[offsets.length];
+    	    int pos=0;
+    	    for(int i=0;i<size;i++){
+    	    	    int from=order[i];
+    	    	    newDocIDs[i]=docIDs[from];
+    	    	    newTermFrequencies[i]=termFrequencies[from];
+    	    	    newScores[i]=scores[from];
+    	    	    newOffsetStarts[i]=pos;
+    	    	    System.arraycopy(offsets,offsetStarts[from],newOffsets,pos,termFrequencies[from]);
+    	    	    pos+=termFrequencies[from];
+    	    }
+    	    docIDs=newDocIDs;
+    	    termFrequencies=newTermFrequencies;
+    	    offsetStarts=newOffsetStarts;
+    	    scores=newScores;
+    	    offsets=newOffsets;
+    }
+
+    /**
+     *  Writes a compressed list to a segment: the number of postings, the
+     *  last docID, the skip entries and the encoded postings. The last
+     *  posting is encoded first, so no offsets can be added to it after.
+     *  @return the number of bytes written
+     */
+    int write(DataOutputStream out) throws IOException {
+    	    if(!compressed){
+    	    	    throw new UnsupportedOperationException("Only a compressed PostingsList can be written to a segment");
+    	    }
+    	    unmap();
+    	    encodePending();
+    	    randomAccess=null;
+    	    out.writeInt(size);
+    	    out.writeInt(lastEncodedDocID);
+    	    out.writeInt(nrOfSkips);
+    	    for(int k=0;k<nrOfSkips;k++){
+    	    	    out.writeInt(skipDocIDs[k]);
+    	    	    out.writeInt(skipPositions[k]);
+    	    }
+    	    out.writeInt(dataLength);
+    	    out.write(data,0,dataLength);
+    	    return 16+8*nrOfSkips+dataLength;
+    }
+
+    /** Number of bytes that write() writes, encodes the pending posting */
+    int writtenLength(){
+    	    encodePending();
+    	    return 16+8*nrOfSkips+dataLength;
+    }
+
+    /**
+     *  Reads a list written by write() from the position of buf, and
+     *  moves the position past it. Only the skip entries are copied, the
+     *  encoded postings are decoded straight from buf.
+     */
+    static PostingsList read(ByteBuffer buf){
+    	    PostingsList list=new PostingsList(true);
+    	    list.size=buf.getInt();
+    	    list.encodedPostings=list.size;
+    	    list.lastEncodedDocID=buf.getInt();
+    	    list.nrOfSkips=buf.getInt();
+    	    list.skipDocIDs=new int[list.nrOfSkips];
+    	    list.skipPositions=new int[list.nrOfSkips];
+    	    for(int k=0;k<list.nrOfSkips;k++){
+    	    	    list.skipDocIDs[k]=buf.getInt();
+    	    	    list.skipPositions[k]=buf.getInt();
+    	    }
+    	    list.dataLength=buf.getInt();
+    	    ByteBuffer mapped=buf.slice();
+    	    mapped.limit(list.dataLength);
+    	    list.mapped=mapped;
+    	    list.data=null;
+    	    buf.position(buf.position()+list.dataLength);
+    	    return list;
+    }
+
+    /**
+     *  Reads one byte of every page of the mapped postings, so that a
+     *  thread that only prefetches the list takes the page faults, not
+     *  the one that decodes it. Does nothing if the list is on the heap.
+     */
+    void load(){
+    	    ByteBuffer buf=mapped;
+    	    if(buf==null || dataLength==0){
+    	    	    return;
+    	    }
+    	    int sum=buf.get(dataLength-1);
+    	    for(int i=0;i<dataLength;i+=PAGE_SIZE){
+    	    	    sum+=buf.get(i);
+    	    }
+    	    loaded=sum;
+    }
+
+    /**
+     *  Appends all postings of other, which must have larger docIDs than
+     *  the postings of this list. Both lists must be compressed. The last
+     *  posting of other is encoded first, so no offsets can be added to
+     *  it after. The encoded postings are copied as they are, only the
+     *  docID gap of the first one is encoded again and the skip entries
+     *  are recomputed.
+     */
+    void appendAll(PostingsList other){
+    	    if(!compressed || !other.compressed){
+    	    	    throw new UnsupportedOperationException("Only a compressed PostingsList can be appended");
+    	    }
+    	    if(other.hasPending){
+    	    	    other.encodePending();
+    	    	    other.randomAccess=null;
+    	    }
+    	    if(other.size==0){
+    	    	    return;
+    	    }
+    	    PostingsCursor cur=other.cursor();
+    	    cur.next();
+    	    int firstDocID=cur.docID();
+    	    if(size>0 && firstDocID<=lastDocID()){
+    	    	    throw new IllegalStateException("docID "+firstDocID+" added after "+lastDocID()+" to a compressed PostingsList");
+    	    }
+    	    unmap();
+    	    encodePending();
+    	    randomAccess=null;
+
+    	    //Everything after the docID gap of the first posting is copied
+    	    int skipped=VByte.length(firstDocID);
+    	    int needed=VByte.length(firstDocID-lastEncodedDocID)+other.dataLength-skipped;
+    	    if(dataLength+needed>data.length){
+    	    	    byte[] newData=new byte[Math.max(data.length*2,dataLength+needed)];
+    	    	    System.arraycopy(data,0,newData,0,dataLength);
+    	    	    data=newData;
+    	    }
+    	    int pos=VByte.write(data,dataLength,firstDocID-lastEncodedDocID);
+    	    if(other.mapped!=null){
+    	    	    ByteBuffer src=other.mapped.duplicate();
+    	    	    src.position(skipped);
+    	    	    src.get(data,pos,other.dataLength-skipped);
+    	    }
+    	    else{
+    	    	    System.arraycopy(other.data,skipped,data,pos,other.dataLength-skipped);
+    	    }
+    	    //Position in data of byte 0 of other
+    	    int base=pos-skipped;
+
+    	    //A skip entry after every SKIP_INTERVAL postings of the whole list
+    	    do{
+    	    	    encodedPostings++;
+    	    	    if(encodedPostings%SKIP_INTERVAL==0){
+    	    	    	    if(nrOfSkips==skipDocIDs.length){
+    	    	    	    	    skipDocIDs=grow(skipDocIDs,skipDocIDs.length*2);
+    	    	    	    	    skipPositions=grow(skipPositions,skipPositions.length*2);
+    	    	    	    }
+    	    	    	    skipDocIDs[nrOfSkips]=cur.docID();
+    	    	    	    skipPositions[nrOfSkips]=base+cur.endPosition();
+    	    	    	    nrOfSkips++;
+    	    	    }
+    	    }while(cur.next());
+
+    	    size+=other.size;
+    	    dataLength=base+other.dataLength;
+    	    lastEncodedDocID=other.lastEncodedDocID;
+    }
+
+    /** Drops the unused capacity before the list is written to disk */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+    	    if(compressed){
+    	    	    unmap();
+    	    	    encodePending();
+    	    	    randomAccess=null;
+    	    	    if(data.length>dataLength){
+    	    	    	    byte[] newData=new byte[dataLength];
+    	    	    	    System.arraycopy(data,0,newData,0,dataLength);
+    	    	    	    data=newData;
+    	    	    }
+    	    	    if(skipDocIDs.length>nrOfSkips){
+    	    	    	    skipDocIDs=trim(skipDocIDs,nrOfSkips);
+    	    	    	    skipPositions=trim(skipPositions,nrOfSkips);
+    	    	    }
+    	    }
+    	    else if(docIDs.length>size){
+    	    	    docIDs=trim(docIDs,size);
+    	    	    termFrequencies=trim(termFrequencies,size);
+    	    	    offsetStarts=trim(offsetStarts,size);
+    	    	    double[] newScores=new double[size];
+    	    	    System.arraycopy(scores,0,newScores,0,size);
+    	    	    scores=newScores;
+    	    	    offsets=trim(offsets,nrOfOffsets);
+    	    }
+    	    out.defaultWriteObject();
+    }
+
+    private static int[] trim(int[] arr, int length){
+    	    int[] res=new int[length];
+    	    System.arraycopy(arr,0,res,0,length);
+    	    return res;
+    }
+}
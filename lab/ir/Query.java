@@ -10,7 +10,6 @@ package ir;
 import java.util.LinkedList;
 import java.util.StringTokenizer;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Set;
 import java.io.File;
 
@@ -79,7 +78,7 @@ public class Query {
 		}
 	}
 	
-	int nrDocsInCorpus=indexer.index.docIDs.keySet().size();
+	int nrDocsInCorpus=indexer.index.documents.sizeWithDeleted();
 	
 	if(nrOfRelevantDocs>0){
 		//Go through the relevance list
@@ -87,9 +86,8 @@ public class Query {
 			//If the document is relevant
 			if(docIsRelevant[i]){
 				//Get the info about the file
-				PostingsEntry ent=results.get(i);
-				int docID=ent.docID;
-				String docPath=indexer.index.docIDs.get(""+docID);
+				int docID=results.docID(i);
+				String docPath=indexer.index.docName(docID);
 				//Read the file
 				//HardCoded to the davisWiki structure...
 				String dirName=docPath.substring(0,9);
@@ -108,17 +106,15 @@ public class Query {
 					double termIDF=Math.log((double)nrDocsInCorpus/(double)dft);
 					
 					
-					Iterator<PostingsEntry> it=curList.iterator();
-					PostingsEntry curEnt=null;
+					PostingsCursor cur=curList.cursor();
 					//Iterate and find the entry belonging to the document we are looking at
-					while(it.hasNext()){
-						curEnt=it.next();
+					while(cur.next()){
 						//When we find the correct entry
-						if(curEnt.docID==docID){
+						if(cur.docID()==docID){
 							//Calculate the tf_idf score for the term
-							double tf=(double)curEnt.getOffsets().size();
+							double tf=(double)cur.termFrequency();
 							double tf_idf=tf*termIDF;
-							Integer docLength=indexer.index.docLengths.get(""+docID);
+							int docLength=indexer.index.documents.length(docID);
 							double finalScore=tf_idf/(double)docLength;
 							
 							//Multiply with beta and divide by number of relevant
@@ -0,0 +1,124 @@
+
+
+package ir;
+
+import java.util.Arrays;
+
+
+/**
+ *   Accumulates scores per docID for ranked retrieval. The scores are
+ *   kept in a dense double[] indexed by docID, and the docIDs that have
+ *   been given a score are remembered in a list, so clearing only costs
+ *   as much as the number of documents the last query touched.
+ *
+ *   One accumulator is kept per thread and reused across queries, so
+ *   the scores of a query must be read out before the next query on
+ *   the same thread calls forThread():
+ *	ScoreAccumulator acc=ScoreAccumulator.forThread(nrOfDocs);
+ *	acc.add(docID,score);
+ *	for(int i=0;i<acc.size();i++){ ... acc.docID(i) ... acc.score(i) }
+ */
+public class ScoreAccumulator {
+
+    private static final ThreadLocal<ScoreAccumulator> PER_THREAD=new ThreadLocal<ScoreAccumulator>(){
+    	    protected ScoreAccumulator initialValue(){
+    	    	    return new ScoreAccumulator(1024);
+    	    }
+    };
+
+    private double[] scores;
+    private boolean[] touched;
+
+    /** The docIDs with a score, in the order they were first touched */
+    private int[] docIDs=new int[1024];
+    private int size=0;
+
+
+    public ScoreAccumulator(int capacity){
+    	    scores=new double[capacity];
+    	    touched=new boolean[capacity];
+    }
+
+
+    /**
+     *  Returns the accumulator of the current thread, cleared and with
+     *  room for docIDs smaller than capacity.
+     */
+    public static ScoreAccumulator forThread(int capacity){
+    	    ScoreAccumulator acc=PER_THREAD.get();
+    	    acc.clear();
+    	    acc.ensureCapacity(capacity);
+    	    return acc;
+    }
+
+    /** Adds score to the score of docID */
+    public void add(int docID, double score){
+    	    touch(docID);
+    	    scores[docID]+=score;
+    }
+
+    /** Sets the score of docID */
+    public void set(int docID, double score){
+    	    touch(docID);
+    	    scores[docID]=score;
+    }
+
+    /** Returns the score of docID, 0 if it has none */
+    public double get(int docID){
+    	    if(docID>=scores.length){
+    	    	    return 0;
+    	    }
+    	    return scores[docID];
+    }
+
+    public boolean contains(int docID){
+    	    return docID<touched.length && touched[docID];
+    }
+
+    /** Number of docIDs with a score */
+    public int size(){
+    	    return size;
+    }
+
+    /** The ith docID with a score */
+    public int docID(int i){
+    	    return docIDs[i];
+    }
+
+    /** The score of the ith docID with a score */
+    public double score(int i){
+    	    return scores[docIDs[i]];
+    }
+
+    /** Removes all scores */
+    public void clear(){
+    	    for(int i=0;i<size;i++){
+    	    	    int docID=docIDs[i];
+    	    	    scores[docID]=0;
+    	    	    touched[docID]=false;
+    	    }
+    	    size=0;
+    }
+
+
+    private void touch(int docID){
+    	    if(docID>=scores.length){
+    	    	    ensureCapacity(docID+1);
+    	    }
+    	    if(!touched[docID]){
+    	    	    touched[docID]=true;
+    	    	    if(size==docIDs.length){
+    	    	    	    docIDs=Arrays.copyOf(docIDs,size*2);
+    	    	    }
+    	    	    docIDs[size++]=docID;
+    	    }
+    }
+
+    private void ensureCapacity(int capacity){
+    	    if(capacity>scores.length){
+    	    	    int newCapacity=Math.max(scores.length*2,capacity);
+    	    	    scores=Arrays.copyOf(scores,newCapacity);
+    	    	    touched=Arrays.copyOf(touched,newCapacity);
+    	    }
+    }
+}
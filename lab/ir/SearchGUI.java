@@ -34,6 +34,12 @@ public class SearchGUI extends JFrame {
 	
     /**  The returned documents, used in search() and relevanceFeedbackSearch() */
     private PostingsList results; 
+
+    /**  Number of ranked results to show at first and to add for each "More results" */
+    static final int RESULTS_PER_PAGE = 50;
+
+    /**  Number of ranked results asked for in the current search */
+    private int resultsWanted = RESULTS_PER_PAGE;
 	
     /**  Directories that should be indexed. */
     LinkedList<String> dirNames = new LinkedList<String>();
@@ -58,6 +64,39 @@ public class SearchGUI extends JFrame {
     
     /** Variable to tell if the index should be saved or not (Task 1.6 lab1) */
     public static boolean saveIndex=false;
+    
+    /** If set, ranked queries drop terms with a low idf. Faster, but changes the results */
+    public static boolean idfCutoff=false;
+    
+    /** Snapshot of the in-memory index, opened at startup instead of indexing again */
+    static final String SNAPSHOT = "index.snapshot";
+    
+    /** MB per second that the background merges of a saved index may write, 0 for no limit */
+    public static double mergeRate=20;
+    
+    /** MB of postings that a saved index caches for the query terms */
+    public static int postingsCacheMB=64;
+    
+    /** Threads that extract the text of PDFs, see PdfExtractor */
+    public static int pdfThreads=2;
+    
+    /** Seconds that the text of one PDF may take to extract, after that the PDF is skipped */
+    public static int pdfTimeout=30;
+    
+    /** Directory where the text of the PDFs is cached, under a hash of their contents */
+    static final String PDF_CACHE = "pdfcache";
+    
+    /** Threads that read the postings of the query terms of a saved index in parallel, 0 to read them one by one */
+    public static int prefetchThreads=4;
+    
+    /** Threads that read the text of the files, PDFs too, when an in-memory index is built, see IndexPipeline */
+    public static int extractThreads=2;
+    
+    /** Threads that tokenize the files of an in-memory index */
+    public static int tokenizeThreads=Runtime.getRuntime().availableProcessors();
+    
+    /** Threads that build the shards of an in-memory index */
+    public static int indexThreads=Runtime.getRuntime().availableProcessors();
 
 
     /*
@@ -98,6 +137,7 @@ public class SearchGUI extends JFrame {
     public JPanel feedbackBar = new JPanel(); 
     JCheckBox[] feedbackButton = new JCheckBox[10];
     JToggleButton feedbackExecutor = new JToggleButton("New search"); 
+    JButton moreExecutor = new JButton("More results"); 
 
 
     /* ----------------------------------------------- */
@@ -164,46 +204,47 @@ public class SearchGUI extends JFrame {
 	    feedbackBar.add( feedbackButton[i] ); 
 	}
 	feedbackBar.add( feedbackExecutor );
+	feedbackBar.add( moreExecutor );
 	p.add( feedbackBar ); 
 	// Show the interface
 	setVisible( true );
 		
-	Action search = new AbstractAction() {
+	final Action search = new AbstractAction() {
 		public void actionPerformed( ActionEvent e ) {
-		    // Normalize the search string and turn it into a Query
-		    String queryString = SimpleTokenizer.normalize( queryWindow.getText() );
-		    query = new Query( queryString );
+		    // "More results" asks for the next page of the same query
+		    if ( e.getSource() != moreExecutor || query == null ) {
+			// Normalize the search string and turn it into a Query
+			String queryString = SimpleTokenizer.normalize( queryWindow.getText() );
+			query = new Query( queryString );
+			resultsWanted = RESULTS_PER_PAGE;
+		    }
 		    // Search and print results. Access to the index is synchronized since
 		    // we don't want to search at the same time we're indexing new files
 		    // (this might corrupt the index).
 		    synchronized ( indexLock ) {
-			results = indexer.index.search( query, queryType, rankingType, structureType ); 
+			results = indexer.index.search( query, queryType, rankingType, structureType, resultsWanted ); 
 		    }
 		    StringBuffer buf = new StringBuffer();
 		    if ( results != null ) {
-			buf.append( "\nFound " + results.size() + " matching document(s)\n\n" );
+			buf.append( "\nFound " + results.totalSize() + " matching document(s)\n\n" );
 			for ( int i=0; i<results.size(); i++ ) {
 			    buf.append( " " + i + ". " );
-			    String filename=null;
-			    if(SearchGUI.saveIndex){
-			    	   // System.err.println("SaveIndex");
-			    	 filename=results.get(i).docName;   
-			    }
-			    else{
-			    	 filename = indexer.index.docIDs.get( "" + results.get(i).docID );
-			    }
+			    String filename = indexer.index.docName( results.docID(i) );
 			    if ( filename == null ) {
-				buf.append( "" + results.get(i).docID );
+				buf.append( "" + results.docID(i) );
 			    }
 			    else {
 				buf.append( filename );
-				//buf.append( " " + results.get(i).docID );
+				//buf.append( " " + results.docID(i) );
 			    }
 			    if ( queryType == Index.RANKED_QUERY ) {
-				buf.append( "   " + String.format( "%.5f", results.get(i).score )); 
+				buf.append( "   " + String.format( "%.5f", results.score(i) )); 
 			    }
 			    buf.append( "\n" );
 			}
+			if ( results.size() < results.totalSize() ) {
+			    buf.append( "\nShowing the top " + results.size() + ", press \"More results\" for more\n" );
+			}
 		    }
 		    else {
 			buf.append( "\nFound 0 matching document(s)\n\n" );
@@ -217,6 +258,14 @@ public class SearchGUI extends JFrame {
 					    KeyStroke.getKeyStroke( "ENTER" ),
 					    JComponent.WHEN_FOCUSED );
 	
+	Action moreResults = new AbstractAction() {
+		public void actionPerformed( ActionEvent e ) {
+		    resultsWanted += RESULTS_PER_PAGE;
+		    search.actionPerformed( e );
+		}
+	    };
+	moreExecutor.addActionListener( moreResults );
+	
 	Action relevanceFeedbackSearch = new AbstractAction() { 
 		public void actionPerformed( ActionEvent e ) {
 		    // Check that a ranked search has been made prior to the relevance feedback
@@ -234,20 +283,20 @@ public class SearchGUI extends JFrame {
 			// synchronized since we don't want to search at the same time we're indexing new files
 			// (this might corrupt the index).
 			synchronized ( indexLock ) {
-			    results = indexer.index.search( query, queryType, rankingType, structureType );
+			    results = indexer.index.search( query, queryType, rankingType, structureType, resultsWanted );
 			}
 			buf.append( "\nSearch after relevance feedback:\n" );
-			buf.append( "\nFound " + results.size() + " matching document(s)\n\n" );
+			buf.append( "\nFound " + results.totalSize() + " matching document(s)\n\n" );
 			for ( int i=0; i<results.size(); i++ ) {
 			    buf.append( " " + i + ". " );
-			    String filename = indexer.index.docIDs.get( "" + results.get(i).docID );
+			    String filename = indexer.index.docName( results.docID(i) );
 			    if ( filename == null ) {
-				buf.append( "" + results.get(i).docID );
+				buf.append( "" + results.docID(i) );
 			    }
 			    else {
 				buf.append( filename );
 			    }
-			    buf.append( "   " + String.format( "%.5f", results.get(i).score ) + "\n" );
+			    buf.append( "   " + String.format( "%.5f", results.score(i) ) + "\n" );
 			}
 		    }
 		    else {
@@ -353,18 +402,73 @@ public class SearchGUI extends JFrame {
      */
     private void index() {
 	synchronized ( indexLock ) {
+	    String[] dirs = dirNames.toArray( new String[dirNames.size()] );
+	    if ( !SearchGUI.saveIndex && dirs.length!=0 && openSnapshot( dirs )) {
+		resultWindow.setText( "\n  Done!" );
+		return;
+	    }
 	    resultWindow.setText( "\n  Indexing, please wait..." );
 	    for ( int i=0; i<dirNames.size(); i++ ) {
 		File dokDir = new File( dirNames.get( i ));
-		indexer.processFiles( dokDir );
+		indexer.processFiles( dokDir, SearchGUI.extractThreads, SearchGUI.tokenizeThreads, SearchGUI.indexThreads );
 	    }
 	    if(SearchGUI.saveIndex && dirNames.size()!=0){
 	    	    indexer.flushIndex();
 	    }
+	    else if(dirs.length!=0){
+	    	    saveSnapshot( dirs );
+	    }
 	    resultWindow.setText( "\n  Done!" );
 	}
     };
 
+    /**
+     *   Opens the in-memory index from its snapshot, if there is a
+     *   snapshot of the directories, and indexes the files that have
+     *   changed since it was saved.
+     */
+    private boolean openSnapshot( String[] dirs ) {
+	try {
+	    long timeBefore=System.nanoTime();
+	    HashedIndex index = Snapshot.open( new File( SNAPSHOT ), dirs );
+	    if ( index == null ) {
+		return false;
+	    }
+	    indexer.index = index;
+	    System.err.println("Opened "+SNAPSHOT+" in "+(System.nanoTime()-timeBefore)/1000000+"ms");
+	    timeBefore=System.nanoTime();
+	    int changed = 0;
+	    for ( String dir : dirs ) {
+		changed += indexer.update( new File( dir ));
+	    }
+	    System.err.println("Updated "+changed+" documents in "+(System.nanoTime()-timeBefore)/1000000+"ms");
+	    if ( changed > 0 ) {
+		saveSnapshot( dirs );
+	    }
+	    return true;
+	}
+	catch ( IOException e ) {
+	    System.err.println("Error reading the snapshot, indexing again");
+	    e.printStackTrace();
+	    return false;
+	}
+    }
+
+    /**
+     *   Saves the in-memory index as a snapshot of the directories.
+     */
+    private void saveSnapshot( String[] dirs ) {
+	try {
+	    long timeBefore=System.nanoTime();
+	    Snapshot.write( new File( SNAPSHOT ), dirs, (HashedIndex)indexer.index );
+	    System.err.println("Wrote "+SNAPSHOT+" in "+(System.nanoTime()-timeBefore)/1000000+"ms");
+	}
+	catch ( IOException e ) {
+	    System.err.println("Error writing the snapshot");
+	    e.printStackTrace();
+	}
+    }
+
 
     /* ----------------------------------------------- */
 
@@ -386,6 +490,58 @@ public class SearchGUI extends JFrame {
 	    	foundI=true;
 	    	i++;
 	    }
+	    else if("-c".equals(args[i])){
+	    	SearchGUI.idfCutoff=true;
+	    	i++;
+	    }
+	    else if("-p".equals(args[i])){
+	    	i++;
+	    	if(i<args.length){
+	    		SearchGUI.postingsCacheMB=Integer.parseInt(args[i++]);
+	    	}
+	    }
+	    else if("-m".equals(args[i])){
+	    	i++;
+	    	if(i<args.length){
+	    		SearchGUI.mergeRate=Double.parseDouble(args[i++]);
+	    	}
+	    }
+	    else if("-w".equals(args[i])){
+	    	i++;
+	    	if(i<args.length){
+	    		SearchGUI.indexThreads=Integer.parseInt(args[i++]);
+	    	}
+	    }
+	    else if("-e".equals(args[i])){
+	    	i++;
+	    	if(i<args.length){
+	    		SearchGUI.extractThreads=Integer.parseInt(args[i++]);
+	    	}
+	    }
+	    else if("-k".equals(args[i])){
+	    	i++;
+	    	if(i<args.length){
+	    		SearchGUI.tokenizeThreads=Integer.parseInt(args[i++]);
+	    	}
+	    }
+	    else if("-f".equals(args[i])){
+	    	i++;
+	    	if(i<args.length){
+	    		SearchGUI.pdfThreads=Integer.parseInt(args[i++]);
+	    	}
+	    }
+	    else if("-s".equals(args[i])){
+	    	i++;
+	    	if(i<args.length){
+	    		SearchGUI.pdfTimeout=Integer.parseInt(args[i++]);
+	    	}
+	    }
+	    else if("-t".equals(args[i])){
+	    	i++;
+	    	if(i<args.length){
+	    		SearchGUI.prefetchThreads=Integer.parseInt(args[i++]);
+	    	}
+	    }
 	    else {
 		System.err.println( "Unknown option: " + args[i] );
 		break;
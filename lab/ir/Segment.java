@@ -0,0 +1,600 @@
+
+
+package ir;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+
+/**
+ *   An immutable part of an index saved on disk. HashedIndex writes one
+ *   segment each time it flushes, as four files written sequentially:
+ *	segment_N.postings  the PostingsLists of all words, back to back
+ *	segment_N.docs      the documents: the first docID and the number
+ *	                    of slots, a table of fixed size slots (length,
+ *	                    position and length of the name) for every
+ *	                    docID from the first on, followed by the UTF-8
+ *	                    bytes of all names
+ *	segment_N.bloom     a BloomFilter of the words
+ *	segment_N.terms     the words sorted on their UTF-8 bytes: a table
+ *	                    of fixed size entries (position and length of
+ *	                    the postings, position and length of the word)
+ *	                    followed by the UTF-8 bytes of all words
+ *   The .terms file is written last, so a segment is only seen by
+ *   list() once it is complete. The docIDs of a segment do not overlap
+ *   those of other segments, and a flush writes larger docIDs than the
+ *   segments before it. A merged segment gets a new name, so the order
+ *   of the segments is that of firstDocID(), not of their names.
+ *
+ *   The segments written by the flushes are sorted runs, merge() turns
+ *   any number of them into one segment in a single streaming pass.
+ *
+ *   When a segment is opened all three files are memory mapped. A word
+ *   is looked up by binary search in the mapped table and its
+ *   PostingsList is decoded in place from the mapped postings, so a
+ *   query on a warm segment is served from the page cache. The slot of
+ *   a document is at docID-firstDocID, so its name is found without a
+ *   search and nothing is read into memory when a segment is opened.
+ *   The Bloom filter is read into memory, so looking up a word that the
+ *   segment does not have almost never touches the mapped files.
+ *   A segment can be at most 2 GB.
+ */
+public class Segment {
+
+    static final String PREFIX="segment_";
+    static final String TERMS=".terms";
+    static final String POSTINGS=".postings";
+    static final String DOCS=".docs";
+    static final String BLOOM=".bloom";
+
+    /** Size of an entry in the table of the .terms file */
+    private static final int ENTRY_SIZE=20;
+
+    /** Size of a slot in the table of the .docs file */
+    private static final int DOC_SIZE=12;
+
+    /** A rate limited merge checks its rate every THROTTLE_BYTES of postings */
+    private static final int THROTTLE_BYTES=1<<16;
+
+    private final String name;
+
+    /** The mapped .terms file, the words start at words */
+    private final ByteBuffer terms;
+    private final int nrOfTerms;
+    private final int words;
+
+    /** The mapped .postings file */
+    private final ByteBuffer postings;
+
+    /** The mapped .docs file, the names start at names */
+    private final ByteBuffer docs;
+    private final int nrOfSlots;
+    private final int names;
+
+    /** The smallest docID of the segment, Integer.MAX_VALUE if it has no documents */
+    private final int firstDocID;
+
+    /** The words of the segment, null for a segment written without one */
+    private final BloomFilter filter;
+
+
+    private Segment(String name, ByteBuffer terms, ByteBuffer postings, ByteBuffer docs, BloomFilter filter){
+    	    this.name=name;
+    	    this.terms=terms;
+    	    this.nrOfTerms=terms.getInt(0);
+    	    this.words=4+nrOfTerms*ENTRY_SIZE;
+    	    this.postings=postings;
+    	    this.docs=docs;
+    	    this.firstDocID=docs.getInt(0);
+    	    this.nrOfSlots=docs.getInt(4);
+    	    this.names=8+nrOfSlots*DOC_SIZE;
+    	    this.filter=filter;
+    }
+
+
+    /**
+     *  Writes the words of dictionary that have postings in index, and
+     *  the documents, as a new segment in dir.
+     *  @return the name of the segment
+     */
+    public static String write(File dir, TermDictionary dictionary, PostingsList[] index, DocumentTable documents) throws IOException {
+    	    String name=nextName(dir);
+
+    	    ArrayList<byte[]> words=new ArrayList<byte[]>();
+    	    for(int termID=0;termID<dictionary.size() && termID<index.length;termID++){
+    	    	    if(index[termID]!=null && index[termID].size()>0){
+    	    	    	    words.add(dictionary.term(termID).getBytes(StandardCharsets.UTF_8));
+    	    	    }
+    	    }
+    	    Collections.sort(words,new Comparator<byte[]>(){
+    	    	    public int compare(byte[] a, byte[] b){
+    	    	    	    return compareBytes(ByteBuffer.wrap(a),0,a.length,ByteBuffer.wrap(b),0,b.length);
+    	    	    }
+    	    });
+
+    	    long[] positions=new long[words.size()];
+    	    int[] lengths=new int[words.size()];
+    	    DataOutputStream out=open(new File(dir,name+POSTINGS));
+    	    try{
+    	    	    long pos=0;
+    	    	    for(int i=0;i<words.size();i++){
+    	    	    	    positions[i]=pos;
+    	    	    	    String term=new String(words.get(i),StandardCharsets.UTF_8);
+    	    	    	    lengths[i]=index[dictionary.lookup(term)].write(out);
+    	    	    	    pos+=lengths[i];
+    	    	    }
+    	    	    if(pos>Integer.MAX_VALUE){
+    	    	    	    throw new IOException("Segment "+name+" has more than 2 GB of postings");
+    	    	    }
+    	    }
+    	    finally{
+    	    	    out.close();
+    	    }
+
+    	    int n=0;
+    	    int[] docIDs=new int[documents.maxDocID()+1];
+    	    int[] docLengths=new int[docIDs.length];
+    	    byte[][] docNames=new byte[docIDs.length][];
+    	    for(int docID=0;docID<docIDs.length;docID++){
+    	    	    String docName=documents.name(docID);
+    	    	    //Only the fully indexed documents
+    	    	    if(docName!=null && documents.length(docID)>=0){
+    	    	    	    docIDs[n]=docID;
+    	    	    	    docLengths[n]=documents.length(docID);
+    	    	    	    docNames[n]=docName.getBytes(StandardCharsets.UTF_8);
+    	    	    	    n++;
+    	    	    }
+    	    }
+    	    writeDocs(new File(dir,name+DOCS),docIDs,docLengths,docNames,n);
+    	    writeBloom(new File(dir,name+BLOOM),words);
+    	    writeTerms(new File(dir,name+TERMS),words,positions,lengths);
+    	    return name;
+    }
+
+    /**
+     *  Merges the open segments into one new segment in dir. The sorted
+     *  words of all segments are merged k-way with a heap, and the
+     *  postings of a word are appended in the order of segments, so the
+     *  segments must hold increasing docIDs in that order. Every segment
+     *  is read once, and only the postings of one word are in memory at
+     *  a time. The old segments are left as they are, see delete().
+     *  @param bytesPerSecond the most postings to write per second, 0 for no limit
+     *  @return the name of the new segment
+     */
+    public static String merge(File dir, final Segment[] segments, double bytesPerSecond) throws IOException {
+    	    String name=nextName(dir);
+
+    	    //The next word of every segment as {segment, word}, the smallest
+    	    //word first and the oldest segment first on equal words
+    	    PriorityQueue<int[]> heads=new PriorityQueue<int[]>(Math.max(1,segments.length),new Comparator<int[]>(){
+    	    	    public int compare(int[] a, int[] b){
+    	    	    	    int cmp=segments[a[0]].compareTerm(a[1],segments[b[0]],b[1]);
+    	    	    	    return cmp!=0 ? cmp : a[0]-b[0];
+    	    	    }
+    	    });
+    	    for(int i=0;i<segments.length;i++){
+    	    	    if(segments[i].nrOfTerms>0){
+    	    	    	    heads.add(new int[]{i,0});
+    	    	    }
+    	    }
+
+    	    ArrayList<byte[]> words=new ArrayList<byte[]>();
+    	    long[] positions=new long[1024];
+    	    int[] lengths=new int[1024];
+    	    boolean complete=false;
+    	    DataOutputStream out=open(new File(dir,name+POSTINGS));
+    	    try{
+    	    	    long pos=0;
+    	    	    long start=System.nanoTime();
+    	    	    long throttled=0;
+    	    	    while(!heads.isEmpty()){
+    	    	    	    int[] head=heads.poll();
+    	    	    	    Segment first=segments[head[0]];
+    	    	    	    int firstTerm=head[1];
+    	    	    	    PostingsList list=new PostingsList(true);
+    	    	    	    while(true){
+    	    	    	    	    list.appendAll(segments[head[0]].postings(head[1]));
+    	    	    	    	    if(++head[1]<segments[head[0]].nrOfTerms){
+    	    	    	    	    	    heads.add(head);
+    	    	    	    	    }
+    	    	    	    	    if(heads.isEmpty() || first.compareTerm(firstTerm,segments[heads.peek()[0]],heads.peek()[1])!=0){
+    	    	    	    	    	    break;
+    	    	    	    	    }
+    	    	    	    	    head=heads.poll();
+    	    	    	    }
+    	    	    	    int n=words.size();
+    	    	    	    if(n==positions.length){
+    	    	    	    	    positions=Arrays.copyOf(positions,n*2);
+    	    	    	    	    lengths=Arrays.copyOf(lengths,n*2);
+    	    	    	    }
+    	    	    	    words.add(first.termBytes(firstTerm));
+    	    	    	    positions[n]=pos;
+    	    	    	    lengths[n]=list.write(out);
+    	    	    	    pos+=lengths[n];
+    	    	    	    if(bytesPerSecond>0 && pos-throttled>=THROTTLE_BYTES){
+    	    	    	    	    throttle(pos,start,bytesPerSecond);
+    	    	    	    	    throttled=pos;
+    	    	    	    }
+    	    	    }
+    	    	    if(pos>Integer.MAX_VALUE){
+    	    	    	    throw new IOException("Segment "+name+" has more than 2 GB of postings");
+    	    	    }
+    	    	    out.close();
+    	    	    writeDocs(dir,name,segments);
+    	    	    writeBloom(new File(dir,name+BLOOM),words);
+    	    	    writeTerms(new File(dir,name+TERMS),words,positions,lengths);
+    	    	    complete=true;
+    	    }
+    	    finally{
+    	    	    out.close();
+    	    	    if(!complete){
+    	    	    	    //Leave the old segments as they were
+    	    	    	    new File(dir,name+TERMS).delete();
+    	    	    	    new File(dir,name+POSTINGS).delete();
+    	    	    	    new File(dir,name+DOCS).delete();
+    	    	    	    new File(dir,name+BLOOM).delete();
+    	    	    }
+    	    }
+    	    return name;
+    }
+
+    /**
+     *  Deletes the files of the segment with the given name in dir. The
+     *  .terms file goes first, so a segment is never listed without its
+     *  postings. A Segment that is open keeps its mapped files readable.
+     */
+    public static void delete(File dir, String name){
+    	    new File(dir,name+TERMS).delete();
+    	    new File(dir,name+POSTINGS).delete();
+    	    new File(dir,name+DOCS).delete();
+    	    new File(dir,name+BLOOM).delete();
+    }
+
+    /** Opens the complete segment with the given name in dir */
+    public static Segment open(File dir, String name) throws IOException {
+    	    File bloom=new File(dir,name+BLOOM);
+    	    BloomFilter filter=bloom.exists() ? BloomFilter.read(map(bloom)) : null;
+    	    return new Segment(name,map(new File(dir,name+TERMS)),map(new File(dir,name+POSTINGS)),map(new File(dir,name+DOCS)),filter);
+    }
+
+    /** Returns the names of the complete segments in dir, in the order they were written */
+    public static String[] list(File dir){
+    	    String[] files=dir.list();
+    	    if(files==null){
+    	    	    return new String[0];
+    	    }
+    	    ArrayList<Integer> numbers=new ArrayList<Integer>();
+    	    for(String file:files){
+    	    	    if(file.startsWith(PREFIX) && file.endsWith(TERMS)){
+    	    	    	    try{
+    	    	    	    	    numbers.add(Integer.parseInt(file.substring(PREFIX.length(),file.length()-TERMS.length())));
+    	    	    	    }
+    	    	    	    catch(NumberFormatException e){
+    	    	    	    	    //Not a segment
+    	    	    	    }
+    	    	    }
+    	    }
+    	    Collections.sort(numbers);
+    	    String[] names=new String[numbers.size()];
+    	    for(int i=0;i<names.length;i++){
+    	    	    names[i]=PREFIX+numbers.get(i);
+    	    }
+    	    return names;
+    }
+
+
+    public String name(){
+    	    return name;
+    }
+
+    /** The smallest docID of the segment, Integer.MAX_VALUE if it has no documents */
+    public int firstDocID(){
+    	    return firstDocID;
+    }
+
+    /** Size of the mapped files in bytes */
+    public long bytes(){
+    	    return terms.capacity()+(long)postings.capacity();
+    }
+
+    /** Number of words in the segment */
+    public int size(){
+    	    return nrOfTerms;
+    }
+
+    /** The ith word in sorted order */
+    public String term(int i){
+    	    return new String(this.termBytes(i),StandardCharsets.UTF_8);
+    }
+
+    /** True if document docID is in the segment */
+    public boolean contains(int docID){
+    	    return this.slot(docID)>=0;
+    }
+
+    /** The name of document docID, or null if it is not in the segment */
+    public String docName(int docID){
+    	    int slot=this.slot(docID);
+    	    if(slot<0){
+    	    	    return null;
+    	    }
+    	    return new String(this.nameBytes(slot),StandardCharsets.UTF_8);
+    }
+
+    /** The number of words in document docID, or -1 if it is not in the segment */
+    public int length(int docID){
+    	    int slot=this.slot(docID);
+    	    return slot<0 ? -1 : docs.getInt(8+slot*DOC_SIZE);
+    }
+
+    /**
+     *  Returns the postings of term, decoded in place from the mapped
+     *  file, or null if the term is not in the segment. The Bloom filter
+     *  is asked first, the table only if it says the term may be there.
+     */
+    public PostingsList getPostings(String term){
+    	    return this.getPostings(term.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** As getPostings(String), for the UTF-8 bytes of the term */
+    PostingsList getPostings(byte[] word){
+    	    if(filter!=null && !filter.contains(word)){
+    	    	    return null;
+    	    }
+    	    int i=this.find(word);
+    	    if(i<0){
+    	    	    return null;
+    	    }
+    	    return this.postings(i);
+    }
+
+
+    /** The postings of the ith word */
+    private PostingsList postings(int i){
+    	    ByteBuffer buf=postings.duplicate();
+    	    buf.position((int)terms.getLong(4+i*ENTRY_SIZE));
+    	    return PostingsList.read(buf);
+    }
+
+    /** The slot of document docID in the .docs table, -1 if it is not there */
+    private int slot(int docID){
+    	    long slot=(long)docID-firstDocID;
+    	    if(slot<0 || slot>=nrOfSlots || docs.getInt(8+(int)slot*DOC_SIZE)<0){
+    	    	    return -1;
+    	    }
+    	    return (int)slot;
+    }
+
+    /** The UTF-8 bytes of the name in slot */
+    private byte[] nameBytes(int slot){
+    	    int entry=8+slot*DOC_SIZE;
+    	    byte[] bytes=new byte[docs.getInt(entry+8)];
+    	    ByteBuffer buf=docs.duplicate();
+    	    buf.position(names+docs.getInt(entry+4));
+    	    buf.get(bytes);
+    	    return bytes;
+    }
+
+    /** The UTF-8 bytes of the ith word */
+    private byte[] termBytes(int i){
+    	    int entry=4+i*ENTRY_SIZE;
+    	    byte[] bytes=new byte[terms.getInt(entry+16)];
+    	    ByteBuffer buf=terms.duplicate();
+    	    buf.position(words+terms.getInt(entry+12));
+    	    buf.get(bytes);
+    	    return bytes;
+    }
+
+    /** Compares the ith word with the jth word of other */
+    private int compareTerm(int i, Segment other, int j){
+    	    int entry=4+i*ENTRY_SIZE;
+    	    int otherEntry=4+j*ENTRY_SIZE;
+    	    return compareBytes(terms,words+terms.getInt(entry+12),terms.getInt(entry+16),
+    	    	    other.terms,other.words+other.terms.getInt(otherEntry+12),other.terms.getInt(otherEntry+16));
+    }
+
+
+    /** Binary search for word in the mapped table, -1 if it is not there */
+    private int find(byte[] word){
+    	    ByteBuffer key=ByteBuffer.wrap(word);
+    	    int low=0;
+    	    int high=nrOfTerms-1;
+    	    while(low<=high){
+    	    	    int mid=(low+high)>>>1;
+    	    	    int entry=4+mid*ENTRY_SIZE;
+    	    	    int cmp=compareBytes(key,0,word.length,terms,words+terms.getInt(entry+12),terms.getInt(entry+16));
+    	    	    if(cmp>0){
+    	    	    	    low=mid+1;
+    	    	    }
+    	    	    else if(cmp<0){
+    	    	    	    high=mid-1;
+    	    	    }
+    	    	    else{
+    	    	    	    return mid;
+    	    	    }
+    	    }
+    	    return -1;
+    }
+
+    /** Compares the lenA bytes of a at posA with the lenB bytes of b at posB, as unsigned bytes */
+    private static int compareBytes(ByteBuffer a, int posA, int lenA, ByteBuffer b, int posB, int lenB){
+    	    int n=Math.min(lenA,lenB);
+    	    for(int i=0;i<n;i++){
+    	    	    int cmp=(a.get(posA+i) & 0xFF)-(b.get(posB+i) & 0xFF);
+    	    	    if(cmp!=0){
+    	    	    	    return cmp;
+    	    	    }
+    	    }
+    	    return lenA-lenB;
+    }
+
+    /** Maps the whole file read only */
+    static MappedByteBuffer map(File file) throws IOException {
+    	    RandomAccessFile raf=new RandomAccessFile(file,"r");
+    	    try{
+    	    	    FileChannel channel=raf.getChannel();
+    	    	    if(channel.size()>Integer.MAX_VALUE){
+    	    	    	    throw new IOException(file+" is larger than 2 GB");
+    	    	    }
+    	    	    //The mapping stays valid after the file is closed
+    	    	    return channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+    	    }
+    	    finally{
+    	    	    raf.close();
+    	    }
+    }
+
+    /**
+     *  The name of the next segment in dir, one higher than any segment
+     *  file there. The name is reserved by creating its .postings file,
+     *  so a flush and a merge that run at the same time get different
+     *  names although neither has written its .terms file yet.
+     */
+    private static synchronized String nextName(File dir) throws IOException {
+    	    int last=-1;
+    	    String[] files=dir.list();
+    	    if(files!=null){
+    	    	    for(String file:files){
+    	    	    	    int dot=file.indexOf('.');
+    	    	    	    if(file.startsWith(PREFIX) && dot>0){
+    	    	    	    	    try{
+    	    	    	    	    	    last=Math.max(last,Integer.parseInt(file.substring(PREFIX.length(),dot)));
+    	    	    	    	    }
+    	    	    	    	    catch(NumberFormatException e){
+    	    	    	    	    	    //Not a segment
+    	    	    	    	    }
+    	    	    	    }
+    	    	    }
+    	    }
+    	    String name=PREFIX+(last+1);
+    	    new File(dir,name+POSTINGS).createNewFile();
+    	    return name;
+    }
+
+    /** Sleeps until writing written bytes since start is within bytesPerSecond */
+    private static void throttle(long written, long start, double bytesPerSecond){
+    	    long wait=start+(long)(written/bytesPerSecond*1e9)-System.nanoTime();
+    	    if(wait>=1000000){
+    	    	    try{
+    	    	    	    Thread.sleep(wait/1000000);
+    	    	    }
+    	    	    catch(InterruptedException e){
+    	    	    	    Thread.currentThread().interrupt();
+    	    	    }
+    	    }
+    }
+
+    /** Writes the documents of the segments, which are in docID order, as the .docs file of name */
+    private static void writeDocs(File dir, String name, Segment[] segments) throws IOException {
+    	    int n=0;
+    	    for(Segment segment:segments){
+    	    	    n+=segment.nrOfSlots;
+    	    }
+    	    int[] docIDs=new int[n];
+    	    int[] docLengths=new int[n];
+    	    byte[][] docNames=new byte[n][];
+    	    n=0;
+    	    for(Segment segment:segments){
+    	    	    for(int slot=0;slot<segment.nrOfSlots;slot++){
+    	    	    	    int docLength=segment.docs.getInt(8+slot*DOC_SIZE);
+    	    	    	    if(docLength>=0){
+    	    	    	    	    docIDs[n]=segment.firstDocID+slot;
+    	    	    	    	    docLengths[n]=docLength;
+    	    	    	    	    docNames[n]=segment.nameBytes(slot);
+    	    	    	    	    n++;
+    	    	    	    }
+    	    	    }
+    	    }
+    	    writeDocs(new File(dir,name+DOCS),docIDs,docLengths,docNames,n);
+    }
+
+    /**
+     *  Writes the first n documents, in increasing docID order, as a
+     *  table with one slot for every docID from the first to the last.
+     *  The slots of the docIDs in between that are not documents get
+     *  the length -1.
+     */
+    private static void writeDocs(File file, int[] docIDs, int[] docLengths, byte[][] docNames, int n) throws IOException {
+    	    DataOutputStream out=open(file);
+    	    try{
+    	    	    int firstDocID=n>0 ? docIDs[0] : Integer.MAX_VALUE;
+    	    	    int nrOfSlots=n>0 ? docIDs[n-1]-firstDocID+1 : 0;
+    	    	    out.writeInt(firstDocID);
+    	    	    out.writeInt(nrOfSlots);
+    	    	    int namePos=0;
+    	    	    int i=0;
+    	    	    for(int slot=0;slot<nrOfSlots;slot++){
+    	    	    	    if(docIDs[i]!=firstDocID+slot){
+    	    	    	    	    out.writeInt(-1);
+    	    	    	    	    out.writeInt(0);
+    	    	    	    	    out.writeInt(0);
+    	    	    	    	    continue;
+    	    	    	    }
+    	    	    	    out.writeInt(docLengths[i]);
+    	    	    	    out.writeInt(namePos);
+    	    	    	    out.writeInt(docNames[i].length);
+    	    	    	    namePos+=docNames[i].length;
+    	    	    	    i++;
+    	    	    }
+    	    	    for(i=0;i<n;i++){
+    	    	    	    out.write(docNames[i]);
+    	    	    }
+    	    }
+    	    finally{
+    	    	    out.close();
+    	    }
+    }
+
+    private static void writeBloom(File file, ArrayList<byte[]> words) throws IOException {
+    	    BloomFilter filter=new BloomFilter(words.size());
+    	    for(byte[] word:words){
+    	    	    filter.add(word);
+    	    }
+    	    DataOutputStream out=open(file);
+    	    try{
+    	    	    filter.write(out);
+    	    }
+    	    finally{
+    	    	    out.close();
+    	    }
+    }
+
+    /** Writes the table of the words and then the words themselves */
+    private static void writeTerms(File file, ArrayList<byte[]> words, long[] positions, int[] lengths) throws IOException {
+    	    DataOutputStream out=open(file);
+    	    try{
+    	    	    out.writeInt(words.size());
+    	    	    int wordPos=0;
+    	    	    for(int i=0;i<words.size();i++){
+    	    	    	    out.writeLong(positions[i]);
+    	    	    	    out.writeInt(lengths[i]);
+    	    	    	    out.writeInt(wordPos);
+    	    	    	    out.writeInt(words.get(i).length);
+    	    	    	    wordPos+=words.get(i).length;
+    	    	    }
+    	    	    for(byte[] word:words){
+    	    	    	    out.write(word);
+    	    	    }
+    	    }
+    	    finally{
+    	    	    out.close();
+    	    }
+    }
+
+    private static DataOutputStream open(File file) throws IOException {
+    	    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),1<<16));
+    }
+}
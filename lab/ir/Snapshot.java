@@ -0,0 +1,140 @@
+
+
+package ir;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ *   A snapshot of an in-memory HashedIndex in one file, so that the
+ *   index can be opened again without tokenizing the corpus. The file
+ *   holds, in order:
+ *	the directories that were indexed
+ *	the DocumentTable
+ *	the TermDictionary
+ *	the PostingsLists of the words (see SnapshotPostings)
+ *	the biword keys and the PostingsLists of the biwords
+ *	the PageRank of every docID, joined on the document names
+ *
+ *   open() maps the file. The arrays of the documents, the dictionary
+ *   and the biword keys are copied in bulk, but a PostingsList is only
+ *   read the first time it is used, and then decoded in place from the
+ *   mapping like the postings of a Segment.
+ *
+ *   The snapshot is only used if it was built from the same directories.
+ *   Files that have been added, changed or deleted since are brought up
+ *   to date with Indexer.update(). Delete the file to force the corpus
+ *   to be indexed again.
+ */
+public class Snapshot {
+
+    private static final int MAGIC=0x49525332;
+
+
+    /**
+     *  Writes index, built from the directories dirs, as a snapshot in
+     *  file. The snapshot is written next to file and renamed, so an
+     *  old snapshot is replaced only when the new one is complete.
+     */
+    public static void write(File file, String[] dirs, HashedIndex index) throws IOException {
+    	    File tmp=new File(file.getPath()+".tmp");
+    	    DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),1<<16));
+    	    try{
+    	    	    out.writeInt(MAGIC);
+    	    	    out.writeInt(dirs.length);
+    	    	    for(String dir:dirs){
+    	    	    	    writeBytes(out,dir.getBytes(StandardCharsets.UTF_8));
+    	    	    }
+    	    	    index.write(out);
+    	    }
+    	    finally{
+    	    	    out.close();
+    	    }
+    	    if(!tmp.renameTo(file)){
+    	    	    file.delete();
+    	    	    if(!tmp.renameTo(file)){
+    	    	    	    throw new IOException("Could not rename "+tmp+" to "+file);
+    	    	    }
+    	    }
+    }
+
+    /**
+     *  Opens the snapshot in file, or returns null if there is none or
+     *  it is not a snapshot of the directories dirs.
+     */
+    public static HashedIndex open(File file, String[] dirs) throws IOException {
+    	    if(!file.isFile()){
+    	    	    return null;
+    	    }
+    	    ByteBuffer buf=Segment.map(file);
+    	    if(buf.getInt()!=MAGIC || buf.getInt()!=dirs.length){
+    	    	    return null;
+    	    }
+    	    for(String dir:dirs){
+    	    	    String name=new String(readBytes(buf,buf.getInt()),StandardCharsets.UTF_8);
+    	    	    if(!name.equals(dir)){
+    	    	    	    return null;
+    	    	    }
+    	    }
+    	    return new HashedIndex(buf);
+    }
+
+
+    /* Arrays are written with a DataOutputStream and read in bulk from a mapping, both big endian */
+
+    static void writeBytes(DataOutputStream out, byte[] a) throws IOException {
+    	    out.writeInt(a.length);
+    	    out.write(a);
+    }
+
+    static byte[] readBytes(ByteBuffer buf, int n){
+    	    byte[] a=new byte[n];
+    	    buf.get(a);
+    	    return a;
+    }
+
+    static void writeInts(DataOutputStream out, int[] a, int n) throws IOException {
+    	    for(int i=0;i<n;i++){
+    	    	    out.writeInt(a[i]);
+    	    }
+    }
+
+    static int[] readInts(ByteBuffer buf, int n){
+    	    int[] a=new int[n];
+    	    buf.asIntBuffer().get(a);
+    	    buf.position(buf.position()+4*n);
+    	    return a;
+    }
+
+    static void writeLongs(DataOutputStream out, long[] a, int n) throws IOException {
+    	    for(int i=0;i<n;i++){
+    	    	    out.writeLong(a[i]);
+    	    }
+    }
+
+    static long[] readLongs(ByteBuffer buf, int n){
+    	    long[] a=new long[n];
+    	    buf.asLongBuffer().get(a);
+    	    buf.position(buf.position()+8*n);
+    	    return a;
+    }
+
+    static void writeDoubles(DataOutputStream out, double[] a, int n) throws IOException {
+    	    for(int i=0;i<n;i++){
+    	    	    out.writeDouble(a[i]);
+    	    }
+    }
+
+    static double[] readDoubles(ByteBuffer buf, int n){
+    	    double[] a=new double[n];
+    	    buf.asDoubleBuffer().get(a);
+    	    buf.position(buf.position()+8*n);
+    	    return a;
+    }
+}
@@ -0,0 +1,67 @@
+
+
+package ir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ *   The PostingsLists of an index in a Snapshot, indexed by term or
+ *   biword id. A table of the positions of the lists comes first, so a
+ *   list can be read from the mapping when it is first asked for.
+ *	[int n] [int position of list i, -1 if none]*n [int length] [lists]
+ */
+class SnapshotPostings {
+
+    /** The mapped lists */
+    private final ByteBuffer lists;
+
+    private final int[] positions;
+
+
+    /** Reads the table from the position of buf and moves the position past the lists */
+    SnapshotPostings(ByteBuffer buf){
+    	    positions=Snapshot.readInts(buf,buf.getInt());
+    	    int length=buf.getInt();
+    	    lists=buf.slice();
+    	    lists.limit(length);
+    	    buf.position(buf.position()+length);
+    }
+
+
+    /** Returns list id read from the mapping, or null if there is none */
+    PostingsList get(int id){
+    	    if(id>=positions.length || positions[id]<0){
+    	    	    return null;
+    	    }
+    	    ByteBuffer buf=lists.duplicate();
+    	    buf.position(positions[id]);
+    	    return PostingsList.read(buf);
+    }
+
+    /** Writes the first n lists, which must be compressed */
+    static void write(DataOutputStream out, PostingsList[] lists, int n) throws IOException {
+    	    int[] positions=new int[n];
+    	    long pos=0;
+    	    for(int i=0;i<n;i++){
+    	    	    positions[i]=-1;
+    	    	    if(lists[i]!=null){
+    	    	    	    positions[i]=(int)pos;
+    	    	    	    pos+=lists[i].writtenLength();
+    	    	    	    if(pos>Integer.MAX_VALUE){
+    	    	    	    	    throw new IOException("A snapshot can hold at most 2 GB of postings");
+    	    	    	    }
+    	    	    }
+    	    }
+    	    out.writeInt(n);
+    	    Snapshot.writeInts(out,positions,n);
+    	    out.writeInt((int)pos);
+    	    for(int i=0;i<n;i++){
+    	    	    if(lists[i]!=null){
+    	    	    	    lists[i].write(out);
+    	    	    }
+    	    }
+    }
+}
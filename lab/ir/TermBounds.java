@@ -0,0 +1,105 @@
+
+
+package ir;
+
+
+/**
+ *   Upper bounds on the tf-idf weight of a term, used to prune ranked
+ *   retrieval. The weight of a posting is termFrequency/docLength, so
+ *   the score a term can add to a document is at most idf times
+ *   maxWeight(). The postings are also split in blocks of
+ *   PostingsList.SKIP_INTERVAL and the maximum weight of every block is
+ *   kept, which gives a tighter bound for the documents in that block.
+ *
+ *   The bounds depend on the document lengths, so they are computed
+ *   when a ranked query first needs them and cached by the HashedIndex
+ *   until the list grows.
+ */
+public class TermBounds {
+
+    /** Number of postings in the list when the bounds were computed */
+    final int size;
+
+    private final double maxWeight;
+
+    /** The last docID and the maximum weight of each block */
+    private final int[] blockLastDocIDs;
+    private final double[] blockMaxWeights;
+    private final int nrOfBlocks;
+
+
+    TermBounds(PostingsList list, DocumentTable documents){
+    	    size=list.size();
+    	    nrOfBlocks=(size+PostingsList.SKIP_INTERVAL-1)/PostingsList.SKIP_INTERVAL;
+    	    blockLastDocIDs=new int[nrOfBlocks];
+    	    blockMaxWeights=new double[nrOfBlocks];
+    	    double max=0;
+    	    PostingsCursor cur=list.cursor();
+    	    while(cur.next()){
+    	    	    int block=cur.index()/PostingsList.SKIP_INTERVAL;
+    	    	    double weight=weight(cur.termFrequency(),documents.length(cur.docID()));
+    	    	    if(weight>blockMaxWeights[block]){
+    	    	    	    blockMaxWeights[block]=weight;
+    	    	    }
+    	    	    blockLastDocIDs[block]=cur.docID();
+    	    	    if(weight>max){
+    	    	    	    max=weight;
+    	    	    }
+    	    }
+    	    maxWeight=max;
+    }
+
+
+    /** The largest termFrequency/docLength of the list */
+    public double maxWeight(){
+    	    return maxWeight;
+    }
+
+    /**
+     *  Returns the block that would hold docID, searching forward from
+     *  block from. Returns nrOfBlocks() if docID is after the last block.
+     */
+    public int block(int docID, int from){
+    	    if(from>=nrOfBlocks || blockLastDocIDs[from]>=docID){
+    	    	    return from;
+    	    }
+    	    //Gallop to find a block whose last docID is >=docID
+    	    int low=from;
+    	    int high=from+1;
+    	    int step=2;
+    	    while(high<nrOfBlocks && blockLastDocIDs[high]<docID){
+    	    	    low=high;
+    	    	    high=from+step;
+    	    	    step*=2;
+    	    }
+    	    if(high>nrOfBlocks){
+    	    	    high=nrOfBlocks;
+    	    }
+    	    while(high-low>1){
+    	    	    int mid=(low+high)>>>1;
+    	    	    if(blockLastDocIDs[mid]<docID){
+    	    	    	    low=mid;
+    	    	    }
+    	    	    else{
+    	    	    	    high=mid;
+    	    	    }
+    	    }
+    	    return high;
+    }
+
+    /** The largest termFrequency/docLength in block, 0 past the last block */
+    public double blockMaxWeight(int block){
+    	    if(block>=nrOfBlocks){
+    	    	    return 0;
+    	    }
+    	    return blockMaxWeights[block];
+    }
+
+    public int nrOfBlocks(){
+    	    return nrOfBlocks;
+    }
+
+    static double weight(int termFrequency, int docLength){
+    	    return (double)termFrequency/(double)docLength;
+    }
+}
@@ -0,0 +1,228 @@
+
+
+package ir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ *   Assigns dense int ids (0,1,2,...) to terms. The terms are stored
+ *   UTF-8 encoded after each other in one byte arena, and looked up
+ *   through an open-addressing hash table of term ids, so there is no
+ *   String or map entry object per term.
+ */
+public class TermDictionary {
+
+    private static final int INITIAL_CAPACITY=1024;
+
+    /** The UTF-8 bytes of all terms */
+    private byte[] arena=new byte[INITIAL_CAPACITY*8];
+    private int arenaLength=0;
+
+    /** Term id i is stored in arena[termStarts[i]..termStarts[i+1]) */
+    private int[] termStarts=new int[INITIAL_CAPACITY+1];
+    private int[] termHashes=new int[INITIAL_CAPACITY];
+    private int nrOfTerms=0;
+
+    /** Hash table with termID+1 in each used slot, 0 for free slots */
+    private int[] table=new int[INITIAL_CAPACITY*2];
+
+    /** Buffer for the UTF-8 bytes of the term being looked up */
+    private byte[] scratch;
+
+
+    public TermDictionary(){
+
+    }
+
+    /** Reads a dictionary written by write() from the position of buf, see Snapshot */
+    TermDictionary(ByteBuffer buf){
+    	    nrOfTerms=buf.getInt();
+    	    arenaLength=buf.getInt();
+    	    arena=Snapshot.readBytes(buf,arenaLength);
+    	    int capacity=Math.max(nrOfTerms,INITIAL_CAPACITY);
+    	    termStarts=Arrays.copyOf(Snapshot.readInts(buf,nrOfTerms+1),capacity+1);
+    	    termHashes=Arrays.copyOf(Snapshot.readInts(buf,nrOfTerms),capacity);
+    	    int tableSize=INITIAL_CAPACITY*2;
+    	    while(nrOfTerms*2>tableSize){
+    	    	    tableSize*=2;
+    	    }
+    	    this.rebuild(tableSize);
+    }
+
+
+    /** Number of terms in the dictionary */
+    public int size(){
+    	    return nrOfTerms;
+    }
+
+    /** Returns the id of term, or -1 if it is not in the dictionary */
+    public int lookup(String term){
+    	    int len=encode(term);
+    	    return lookup(scratch,0,len);
+    }
+
+    /** Returns the id of the term with the given UTF-8 bytes, or -1 */
+    public int lookup(byte[] buf, int start, int len){
+    	    int hash=hash(buf,start,len);
+    	    int mask=table.length-1;
+    	    int slot=hash & mask;
+    	    while(table[slot]!=0){
+    	    	    int id=table[slot]-1;
+    	    	    if(termHashes[id]==hash && equals(id,buf,start,len)){
+    	    	    	    return id;
+    	    	    }
+    	    	    slot=(slot+1) & mask;
+    	    }
+    	    return -1;
+    }
+
+    /** Returns the id of term, adding it to the dictionary if needed */
+    public int add(String term){
+    	    int len=encode(term);
+    	    return add(scratch,0,len);
+    }
+
+    /** Returns the id of term id of other, adding it if needed */
+    int add(TermDictionary other, int id){
+    	    return add(other.arena,other.termStarts[id],other.termStarts[id+1]-other.termStarts[id]);
+    }
+
+    /** Returns the id of the term with the given UTF-8 bytes, adding it if needed */
+    public int add(byte[] buf, int start, int len){
+    	    int hash=hash(buf,start,len);
+    	    int mask=table.length-1;
+    	    int slot=hash & mask;
+    	    while(table[slot]!=0){
+    	    	    int id=table[slot]-1;
+    	    	    if(termHashes[id]==hash && equals(id,buf,start,len)){
+    	    	    	    return id;
+    	    	    }
+    	    	    slot=(slot+1) & mask;
+    	    }
+    	    //A new term
+    	    int id=nrOfTerms;
+    	    if(id==termHashes.length){
+    	    	    termHashes=Arrays.copyOf(termHashes,termHashes.length*2);
+    	    	    termStarts=Arrays.copyOf(termStarts,termHashes.length+1);
+    	    }
+    	    if(arenaLength+len>arena.length){
+    	    	    byte[] newArena=new byte[Math.max(arena.length*2,arenaLength+len)];
+    	    	    System.arraycopy(arena,0,newArena,0,arenaLength);
+    	    	    arena=newArena;
+    	    }
+    	    System.arraycopy(buf,start,arena,arenaLength,len);
+    	    arenaLength+=len;
+    	    termStarts[id+1]=arenaLength;
+    	    termHashes[id]=hash;
+    	    table[slot]=id+1;
+    	    nrOfTerms++;
+    	    //Keep the load factor below 0.5
+    	    if(nrOfTerms*2>table.length){
+    	    	    rehash();
+    	    }
+    	    return id;
+    }
+
+    /** Returns the term with the given id */
+    public String term(int id){
+    	    if(id<0 || id>=nrOfTerms){
+    	    	    throw new IndexOutOfBoundsException("Term id: "+id+", Size: "+nrOfTerms);
+    	    }
+    	    return new String(arena,termStarts[id],termStarts[id+1]-termStarts[id],StandardCharsets.UTF_8);
+    }
+
+    /** Writes the terms, the hash table is built again when they are read */
+    void write(DataOutputStream out) throws IOException {
+    	    out.writeInt(nrOfTerms);
+    	    out.writeInt(arenaLength);
+    	    out.write(arena,0,arenaLength);
+    	    Snapshot.writeInts(out,termStarts,nrOfTerms+1);
+    	    Snapshot.writeInts(out,termHashes,nrOfTerms);
+    }
+
+    /** Number of bytes used by the dictionary arrays */
+    public long memoryBytes(){
+    	    return arena.length+4L*(termStarts.length+termHashes.length+table.length);
+    }
+
+
+    private boolean equals(int id, byte[] buf, int start, int len){
+    	    int termStart=termStarts[id];
+    	    if(termStarts[id+1]-termStart!=len){
+    	    	    return false;
+    	    }
+    	    for(int i=0;i<len;i++){
+    	    	    if(arena[termStart+i]!=buf[start+i]){
+    	    	    	    return false;
+    	    	    }
+    	    }
+    	    return true;
+    }
+
+    private void rehash(){
+    	    this.rebuild(table.length*2);
+    }
+
+    /** Builds a hash table of the given size, a power of two, for the terms */
+    private void rebuild(int size){
+    	    int[] newTable=new int[size];
+    	    int mask=newTable.length-1;
+    	    for(int id=0;id<nrOfTerms;id++){
+    	    	    int slot=termHashes[id] & mask;
+    	    	    while(newTable[slot]!=0){
+    	    	    	    slot=(slot+1) & mask;
+    	    	    }
+    	    	    newTable[slot]=id+1;
+    	    }
+    	    table=newTable;
+    }
+
+    private static int hash(byte[] buf, int start, int len){
+    	    int h=0;
+    	    for(int i=start;i<start+len;i++){
+    	    	    h=31*h+buf[i];
+    	    }
+    	    //Spread the bits, the table only looks at the low ones
+    	    h^=h>>>16;
+    	    h*=0x85ebca6b;
+    	    h^=h>>>13;
+    	    return h;
+    }
+
+    /** UTF-8 encodes term into scratch, returns the number of bytes */
+    private int encode(String term){
+    	    int n=term.length();
+    	    if(scratch==null || scratch.length<n*3){
+    	    	    scratch=new byte[Math.max(n*3,64)];
+    	    }
+    	    int pos=0;
+    	    for(int i=0;i<n;i++){
+    	    	    char c=term.charAt(i);
+    	    	    if(c<0x80){
+    	    	    	    scratch[pos++]=(byte)c;
+    	    	    }
+    	    	    else if(c<0x800){
+    	    	    	    scratch[pos++]=(byte)(0xC0 | (c>>6));
+    	    	    	    scratch[pos++]=(byte)(0x80 | (c & 0x3F));
+    	    	    }
+    	    	    else if(Character.isHighSurrogate(c) && i+1<n && Character.isLowSurrogate(term.charAt(i+1))){
+    	    	    	    int cp=Character.toCodePoint(c,term.charAt(++i));
+    	    	    	    scratch[pos++]=(byte)(0xF0 | (cp>>18));
+    	    	    	    scratch[pos++]=(byte)(0x80 | ((cp>>12) & 0x3F));
+    	    	    	    scratch[pos++]=(byte)(0x80 | ((cp>>6) & 0x3F));
+    	    	    	    scratch[pos++]=(byte)(0x80 | (cp & 0x3F));
+    	    	    }
+    	    	    else{
+    	    	    	    scratch[pos++]=(byte)(0xE0 | (c>>12));
+    	    	    	    scratch[pos++]=(byte)(0x80 | ((c>>6) & 0x3F));
+    	    	    	    scratch[pos++]=(byte)(0x80 | (c & 0x3F));
+    	    	    }
+    	    }
+    	    return pos;
+    }
+}
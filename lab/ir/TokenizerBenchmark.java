@@ -0,0 +1,96 @@
+
+
+package ir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ *   Measures how many tokens per second SimpleTokenizer and
+ *   ByteTokenizer give for the text files under a directory, which are
+ *   read into memory first. Each tokenizer is measured on its own, and
+ *   together with looking the tokens up in a TermDictionary as the
+ *   Indexer does.
+ *
+ *   Usage: java ir.TokenizerBenchmark <directory> [rounds]
+ */
+public class TokenizerBenchmark {
+
+    public static void main(String[] args) throws IOException {
+    	    if(args.length<1){
+    	    	    System.err.println("Usage: java ir.TokenizerBenchmark <directory> [rounds]");
+    	    	    return;
+    	    }
+    	    int rounds=args.length>1 ? Integer.parseInt(args[1]) : 5;
+    	    final ArrayList<byte[]> files=new ArrayList<byte[]>();
+    	    final FileIngester ingester=new FileIngester();
+    	    new FileIngester.Walker(){
+    	    	    void file(Path file, BasicFileAttributes attrs) throws IOException {
+    	    	    	    ByteBuffer bytes=ingester.read(file);
+    	    	    	    if(!FileIngester.isPDF(bytes)){
+    	    	    	    	    files.add(Arrays.copyOf(bytes.array(),bytes.limit()));
+    	    	    	    }
+    	    	    }
+    	    }.walk(new File(args[0]));
+    	    long size=0;
+    	    for(byte[] file:files){
+    	    	    size+=file.length;
+    	    }
+    	    System.out.println(files.size()+" files, "+size/1024+" KB");
+    	    // The first round warms up the JIT
+    	    for(int round=0;round<=rounds;round++){
+    	    	    long[] nanos=new long[4];
+    	    	    long[] tokens=new long[4];
+    	    	    for(int mode=0;mode<4;mode++){
+    	    	    	    TermDictionary dictionary=mode>=2 ? new TermDictionary() : null;
+    	    	    	    long start=System.nanoTime();
+    	    	    	    for(byte[] file:files){
+    	    	    	    	    tokens[mode]+=mode%2==0 ? simple(file,dictionary) : bytes(file,dictionary);
+    	    	    	    }
+    	    	    	    nanos[mode]=System.nanoTime()-start;
+    	    	    }
+    	    	    if(round>0){
+    	    	    	    System.out.println(String.format("round %d: SimpleTokenizer %.1f M tokens/s, ByteTokenizer %.1f M tokens/s, with TermDictionary %.1f vs %.1f M tokens/s",
+    	    	    	    	    round,tokens[0]*1e3/nanos[0],tokens[1]*1e3/nanos[1],tokens[2]*1e3/nanos[2],tokens[3]*1e3/nanos[3]));
+    	    	    }
+    	    	    if(tokens[0]!=tokens[1]){
+    	    	    	    System.out.println("The tokenizers disagree: "+tokens[0]+" vs "+tokens[1]+" tokens");
+    	    	    }
+    	    }
+    }
+
+    /** Tokenizes the file with a SimpleTokenizer, adds the tokens to dictionary if it is not null */
+    private static int simple(byte[] file, TermDictionary dictionary) throws IOException {
+    	    SimpleTokenizer tok=new SimpleTokenizer(new InputStreamReader(new ByteArrayInputStream(file),FileIngester.charset(ByteBuffer.wrap(file))));
+    	    int n=0;
+    	    while(tok.hasMoreTokens()){
+    	    	    String token=tok.nextToken();
+    	    	    if(dictionary!=null){
+    	    	    	    dictionary.add(token);
+    	    	    }
+    	    	    n++;
+    	    }
+    	    return n;
+    }
+
+    /** Tokenizes the file with a ByteTokenizer, adds the tokens to dictionary if it is not null */
+    private static int bytes(byte[] file, TermDictionary dictionary){
+    	    ByteTokenizer tok=new ByteTokenizer(ByteBuffer.wrap(file));
+    	    int n=0;
+    	    while(tok.next()){
+    	    	    if(dictionary!=null){
+    	    	    	    tok.termID(dictionary);
+    	    	    }
+    	    	    n++;
+    	    }
+    	    return n;
+    }
+}
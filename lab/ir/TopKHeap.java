@@ -0,0 +1,182 @@
+
+
+package ir;
+
+
+/**
+ *   Keeps the K best (docID, score) pairs offered to it in a min-heap of
+ *   primitive arrays, so picking the top K of n scored documents costs
+ *   O(n log K) and only the K results are ever put in a PostingsList.
+ *   Higher scores are better, equal scores are ordered on docID.
+ *
+ *   With K<=0 every pair is kept, and toPostingsList() sorts them all
+ *   with PostingsList.sortPostingsList(), which keeps equal scores in
+ *   the order they were offered.
+ */
+public class TopKHeap {
+
+    private final int K;
+
+    /** heap[0] is the worst pair kept so far */
+    private int[] docIDs;
+    private double[] scores;
+    private int size=0;
+
+    /** All pairs, in the order they were offered, if K<=0 */
+    private PostingsList all;
+
+    /** Number of pairs offered */
+    private int offered=0;
+
+
+    public TopKHeap(int K){
+    	    this.K=K;
+    	    if(K>0){
+    	    	    docIDs=new int[K];
+    	    	    scores=new double[K];
+    	    }
+    	    else{
+    	    	    all=new PostingsList();
+    	    }
+    }
+
+
+    /** Offers the pair, it is kept if it is among the K best so far */
+    public void add(int docID, double score){
+    	    offered++;
+    	    if(K<=0){
+    	    	    all.addEntry(docID,score);
+    	    	    size++;
+    	    }
+    	    else if(size<K){
+    	    	    docIDs[size]=docID;
+    	    	    scores[size]=score;
+    	    	    siftUp(size++);
+    	    }
+    	    else if(worse(docIDs[0],scores[0],docID,score)){
+    	    	    docIDs[0]=docID;
+    	    	    scores[0]=score;
+    	    	    siftDown(0);
+    	    }
+    }
+
+    /**
+     *  Returns the K best postings of list, best first. The totalSize()
+     *  of the result is that of list.
+     */
+    public static PostingsList select(PostingsList list, int K){
+    	    TopKHeap heap=new TopKHeap(K);
+    	    for(int i=0;i<list.size();i++){
+    	    	    heap.add(list.docID(i),list.score(i));
+    	    }
+    	    PostingsList top=heap.toPostingsList();
+    	    top.setTotalSize(list.totalSize());
+    	    return top;
+    }
+
+    /**
+     *  The score a new pair has to beat to be kept, -Infinity until K
+     *  pairs have been offered (or always if K<=0).
+     */
+    public double threshold(){
+    	    if(K<=0 || size<K){
+    	    	    return Double.NEGATIVE_INFINITY;
+    	    }
+    	    return scores[0];
+    }
+
+    /**
+     *  Counts a matching document that was not offered because it was
+     *  known not to beat the threshold, for the totalSize() of the result.
+     */
+    public void countMatch(){
+    	    offered++;
+    }
+
+    /** Number of pairs kept */
+    public int size(){
+    	    return size;
+    }
+
+    /**
+     *  Empties the heap into a PostingsList with the best pair first.
+     *  The totalSize() of the list is the number of pairs offered.
+     */
+    public PostingsList toPostingsList(){
+    	    if(K<=0){
+    	    	    PostingsList list=all;
+    	    	    all=new PostingsList();
+    	    	    size=0;
+    	    	    list.sortPostingsList();
+    	    	    return list;
+    	    }
+    	    int n=size;
+    	    int[] sortedDocIDs=new int[n];
+    	    double[] sortedScores=new double[n];
+    	    //Pop the worst pair until the heap is empty
+    	    for(int i=n-1;i>=0;i--){
+    	    	    sortedDocIDs[i]=docIDs[0];
+    	    	    sortedScores[i]=scores[0];
+    	    	    size--;
+    	    	    docIDs[0]=docIDs[size];
+    	    	    scores[0]=scores[size];
+    	    	    siftDown(0);
+    	    }
+    	    PostingsList list=new PostingsList();
+    	    for(int i=0;i<n;i++){
+    	    	    list.addEntry(sortedDocIDs[i],sortedScores[i]);
+    	    }
+    	    list.setTotalSize(offered);
+    	    return list;
+    }
+
+
+    /** True if pair a should come after pair b in the result */
+    private static boolean worse(int docIDA, double scoreA, int docIDB, double scoreB){
+    	    if(scoreA!=scoreB){
+    	    	    return scoreA<scoreB;
+    	    }
+    	    return docIDA>docIDB;
+    }
+
+    private void siftUp(int i){
+    	    int docID=docIDs[i];
+    	    double score=scores[i];
+    	    while(i>0){
+    	    	    int parent=(i-1)>>>1;
+    	    	    if(!worse(docID,score,docIDs[parent],scores[parent])){
+    	    	    	    break;
+    	    	    }
+    	    	    docIDs[i]=docIDs[parent];
+    	    	    scores[i]=scores[parent];
+    	    	    i=parent;
+    	    }
+    	    docIDs[i]=docID;
+    	    scores[i]=score;
+    }
+
+    private void siftDown(int i){
+    	    if(size==0){
+    	    	    return;
+    	    }
+    	    int docID=docIDs[i];
+    	    double score=scores[i];
+    	    while(true){
+    	    	    int child=2*i+1;
+    	    	    if(child>=size){
+    	    	    	    break;
+    	    	    }
+    	    	    if(child+1<size && worse(docIDs[child+1],scores[child+1],docIDs[child],scores[child])){
+    	    	    	    child++;
+    	    	    }
+    	    	    if(!worse(docIDs[child],scores[child],docID,score)){
+    	    	    	    break;
+    	    	    }
+    	    	    docIDs[i]=docIDs[child];
+    	    	    scores[i]=scores[child];
+    	    	    i=child;
+    	    }
+    	    docIDs[i]=docID;
+    	    scores[i]=score;
+    }
+}
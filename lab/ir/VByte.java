@@ -0,0 +1,37 @@
+package ir;
+
+
+/**
+ *   Variable-byte encoding of non-negative ints. Each byte holds 7 bits
+ *   of the value, lowest bits first, and the high bit is set on every
+ *   byte except the last one.
+ */
+public final class VByte {
+
+    private VByte(){
+
+    }
+
+    /** Number of bytes needed to encode value */
+    public static int length(int value){
+    	    int len=1;
+    	    while((value & ~0x7F)!=0){
+    	    	    value>>>=7;
+    	    	    len++;
+    	    }
+    	    return len;
+    }
+
+    /**
+     *  Writes value into buf at pos.
+     *  @return the position after the written bytes
+     */
+    public static int write(byte[] buf, int pos, int value){
+    	    while((value & ~0x7F)!=0){
+    	    	    buf[pos++]=(byte)((value & 0x7F) | 0x80);
+    	    	    value>>>=7;
+    	    }
+    	    buf[pos++]=(byte)value;
+    	    return pos;
+    }
+}